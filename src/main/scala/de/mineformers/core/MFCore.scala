@@ -27,6 +27,7 @@ import java.io.File
 import java.net.URISyntaxException
 
 import com.google.common.base.Throwables
+import de.mineformers.core.asm.util.HierarchyIndex
 import de.mineformers.core.impl.asm.CoreClassTransformer
 import de.mineformers.core.network.MFNetworkWrapper
 import de.mineformers.core.util.Log
@@ -62,6 +63,7 @@ class MFCore extends IFMLLoadingPlugin {
           throw Throwables.propagate(e)
       }
     }
+    HierarchyIndex.buildDefault()
   }
 
   /**
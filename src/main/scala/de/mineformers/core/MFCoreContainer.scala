@@ -27,19 +27,22 @@ import java.io.File
 
 import com.google.common.collect.ImmutableList
 import com.google.common.eventbus.{EventBus, Subscribe}
+import de.mineformers.core.asm.transformer.{ClassCache, TransformerProfiler}
 import de.mineformers.core.block.TestBlock
+import de.mineformers.core.command.MFCoreCommand
 import de.mineformers.core.client.ui.skin.{GuiMetadataSection, GuiMetadataSectionDeserializer, TextureLoader}
 import de.mineformers.core.item.TestItem
-import de.mineformers.core.network.{MFNetworkWrapper, TileDescriptionMessage}
+import de.mineformers.core.network.{DescriptionClassesMessage, HandlerThread, MFNetworkWrapper, PlayerIndex, TileDescriptionMessage, TileDescriptionRequest}
 import de.mineformers.core.registry.{SharedBlockRegistry, SharedItemRegistry}
-import de.mineformers.core.tileentity.Describable
+import de.mineformers.core.tileentity.{Describable, DescriptionRegistry, DescriptionRequests, DirtyTiles, ParallelTicks, TileProfiler, TileScheduler}
 import de.mineformers.core.util.renderer.GuiUtils
 import net.minecraft.client.Minecraft
 import net.minecraft.client.resources.SimpleReloadableResourceManager
 import net.minecraft.profiler.Profiler
+import net.minecraftforge.common.MinecraftForge
 import net.minecraftforge.fml.client.{FMLFileResourcePack, FMLFolderResourcePack}
-import net.minecraftforge.fml.common.event.{FMLInitializationEvent, FMLPreInitializationEvent}
-import net.minecraftforge.fml.common.{DummyModContainer, LoadController, ModMetadata}
+import net.minecraftforge.fml.common.event.{FMLInitializationEvent, FMLLoadCompleteEvent, FMLPreInitializationEvent, FMLServerStartingEvent}
+import net.minecraftforge.fml.common.{DummyModContainer, FMLCommonHandler, LoadController, ModMetadata}
 import net.minecraftforge.fml.relauncher.{Side, SideOnly}
 import net.minecraftforge.fml.server.FMLServerHandler
 
@@ -74,6 +77,23 @@ class MFCoreContainer extends DummyModContainer(new ModMetadata) {
   def preInit(event: FMLPreInitializationEvent): Unit = {
     MFCore.net = new MFNetworkWrapper("MFCore")
     MFCore.net.register[TileDescriptionMessage]()
+    MFCore.net.register[TileDescriptionRequest]()
+    MFCore.net.register[DescriptionClassesMessage]()
+    FMLCommonHandler.instance().bus().register(DescriptionRegistry)
+    FMLCommonHandler.instance().bus().register(DescriptionRequests)
+    FMLCommonHandler.instance().bus().register(PlayerIndex)
+    FMLCommonHandler.instance().bus().register(TileScheduler)
+    MinecraftForge.EVENT_BUS.register(TileScheduler)
+    FMLCommonHandler.instance().bus().register(DirtyTiles)
+    MinecraftForge.EVENT_BUS.register(DirtyTiles)
+    FMLCommonHandler.instance().bus().register(TileProfiler)
+    FMLCommonHandler.instance().bus().register(ParallelTicks)
+    MinecraftForge.EVENT_BUS.register(ParallelTicks)
+    MFCore.net.addTypedHandler[TileDescriptionRequest](Side.SERVER, HandlerThread.Main) {
+      (msg, ctx) =>
+        DescriptionRequests.queue(ctx.serverHandler.playerEntity, msg.pos)
+        null
+    }
     SharedBlockRegistry.add("test", new TestBlock)
     SharedItemRegistry.add("testItem", new TestItem)
     Proxy.preInit(event)
@@ -84,6 +104,27 @@ class MFCoreContainer extends DummyModContainer(new ModMetadata) {
     Proxy.init(event)
   }
 
+  /**
+   * Fired once the game has finished loading, most classes have been transformed at this point
+   *
+   * @param event the load complete event
+   */
+  @Subscribe
+  def loadComplete(event: FMLLoadCompleteEvent): Unit = {
+    ClassCache.saveAll()
+    TransformerProfiler.reportAll()
+  }
+
+  /**
+   * Fired when a server is starting, registers MFCore's commands
+   *
+   * @param event the server starting event
+   */
+  @Subscribe
+  def serverStarting(event: FMLServerStartingEvent): Unit = {
+    event.registerServerCommand(new MFCoreCommand)
+  }
+
   override def getSource: File = MFCore.CoreModLocation
 
   override def getCustomResourcePackClass: Class[_] =
@@ -108,17 +149,19 @@ object Proxy {
   @SideOnly(Side.CLIENT)
   def clientPreInit(): Unit = {
     profiler = Minecraft.getMinecraft.mcProfiler
-    MFCore.net.addHandler({
-      case (TileDescriptionMessage(pos, desc), ctx) =>
-        val tile = Minecraft.getMinecraft.theWorld.getTileEntity(pos)
-        tile match {
-          case d: Describable =>
-            desc.writeParent(d)
-            d.onDescription()
-          case _ =>
-        }
+    MFCore.net.addTypedHandler[DescriptionClassesMessage](Side.CLIENT) {
+      (msg, ctx) =>
+        DescriptionRegistry.receive(msg.start, msg.classes)
         null
-    }, Side.CLIENT)
+    }
+    MFCore.net.addTypedHandler[TileDescriptionMessage](Side.CLIENT, HandlerThread.Main) {
+      (msg, ctx) =>
+        Minecraft.getMinecraft.theWorld.getTileEntity(msg.pos) match {
+          case d: Describable if d.receiveDescription(msg.description) =>
+            TileDescriptionRequest(msg.pos)
+          case _ => null
+        }
+    }
     Minecraft.getMinecraft.getResourcePackRepository.rprMetadataSerializer.registerMetadataSectionType(new GuiMetadataSectionDeserializer(), classOf[GuiMetadataSection])
     GuiUtils.init()
     Minecraft.getMinecraft.getResourceManager.asInstanceOf[SimpleReloadableResourceManager].registerReloadListener(new TextureLoader)
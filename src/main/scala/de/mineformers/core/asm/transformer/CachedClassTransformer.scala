@@ -23,11 +23,11 @@
  */
 package de.mineformers.core.asm.transformer
 
-import de.mineformers.core.asm.util.ClassInfo
+import de.mineformers.core.asm.util.{ClassHeader, ClassInfo, HierarchyClassWriter}
 import net.minecraft.launchwrapper.IClassTransformer
+import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.ClassWriter._
 import org.objectweb.asm.tree.ClassNode
-import org.objectweb.asm.{ClassReader, ClassWriter}
 
 import scala.collection.mutable
 
@@ -40,6 +40,17 @@ trait CachedClassTransformer extends IClassTransformer {
   protected val transformers = mutable.ArrayBuffer[ClassTransformer]()
   init()
 
+  /**
+   * The on-disk cache of this wrapper's output, opened once all transformers are registered.
+   * Null if caching is disabled.
+   */
+  protected lazy val cache: ClassCache = ClassCache.open(getClass.getName, transformers)
+
+  /**
+   * The profiler of this wrapper, null if profiling is disabled
+   */
+  protected lazy val profiler: TransformerProfiler = TransformerProfiler.open(getClass.getName, transformers)
+
   /**
    * Initialize this transformer wrapper, register the actual transformers here
    */
@@ -59,25 +70,153 @@ trait CachedClassTransformer extends IClassTransformer {
    * @return a (modified) byte array representing the class
    */
   override def transform(name: String, transformedName: String, bytes: Array[Byte]): Array[Byte] = {
-    var transformed: Boolean = false
-    var clazz: ClassNode = null
-    var classInfo: ClassInfo = null
-    for (transformer <- transformers) {
+    if (bytes == null)
+      return null
+    val profiler = this.profiler
+    if (profiler != null)
+      profiler.classes.incrementAndGet()
+    val cache = this.cache
+    if (cache == null)
+      return transformUncached(transformedName, bytes)
+    val hash = cache.hash(bytes)
+    val cached = cache.get(transformedName, hash, bytes)
+    if (cached != null) {
+      if (profiler != null)
+        profiler.cacheHits.incrementAndGet()
+      return cached
+    }
+    val lookups = ClassInfo.lookupCount
+    val result = transformUncached(transformedName, bytes)
+    // only entries whose transformers consulted the hierarchy have to be checked against the supertypes later
+    val ancestry = if (ClassInfo.lookupCount != lookups) cache.ancestry(bytes) else null
+    cache.put(transformedName, hash, ancestry, bytes, result)
+    result
+  }
+
+  /**
+   * Run all registered transformers on the given class, bypassing the cache.
+   * @param transformedName the name of the class after transformation
+   * @param bytes the untransformed class' bytes
+   * @return a (modified) byte array representing the class, the same instance as bytes if nothing was changed
+   */
+  protected def transformUncached(transformedName: String, bytes: Array[Byte]): Array[Byte] = {
+    val profiler = this.profiler
+    var header: ClassHeader = null
+    var accepted: mutable.ArrayBuffer[Int] = null
+    for (i <- transformers.indices) {
+      val transformer = transformers(i)
+      val start = if (profiler != null) System.nanoTime() else 0L
       if (transformer.transforms(transformedName)) {
-        if (clazz == null) {
-          val cr = new ClassReader(bytes)
-          clazz = new ClassNode()
-          cr.accept(clazz, 0)
-          classInfo = ClassInfo.of(clazz)
+        if (header == null)
+          header = new ClassHeader(bytes)
+        if (transformer.accepts(header)) {
+          if (accepted == null)
+            accepted = mutable.ArrayBuffer.empty[Int]
+          accepted += i
+          if (profiler != null)
+            profiler.stats(i).accepted.incrementAndGet()
         }
-        transformed |= transformer.transform(clazz, classInfo)
+      }
+      if (profiler != null) {
+        profiler.stats(i).inspected.incrementAndGet()
+        profiler.stats(i).filterNanos.addAndGet(System.nanoTime() - start)
       }
     }
-    if (transformed) {
-      val cw = new ClassWriter(COMPUTE_FRAMES | COMPUTE_MAXS)
+    if (accepted == null)
+      bytes
+    else if (accepted forall (transformers(_).isInstanceOf[VisitorTransformer]))
+      transformStreaming(header, accepted)
+    else
+      transformTree(header, accepted)
+  }
+
+  /**
+   * Chain the visitors of all given transformers into a single pass from the reader to the writer.
+   * @param header the header of the class to transform
+   * @param accepted the indices of the transformers which accepted the class, all of them visitor based
+   * @return a (modified) byte array representing the class
+   */
+  private def transformStreaming(header: ClassHeader, accepted: Seq[Int]): Array[Byte] = {
+    val profiler = this.profiler
+    val start = if (profiler != null) System.nanoTime() else 0L
+    val info = ClassInfo.of(header)
+    val writer = new HierarchyClassWriter(header.reader, writerFlags(accepted exists (transformers(_).changesControlFlow)), info)
+    val visitors = new Array[TransformingVisitor](accepted.size)
+    var next: ClassVisitor = writer
+    for (i <- accepted.indices.reverse) {
+      visitors(i) = transformers(accepted(i)).asInstanceOf[VisitorTransformer].visitor(next, info)
+      next = visitors(i)
+    }
+    header.reader.accept(next, 0)
+    if (profiler != null) {
+      // Parsing and transforming are interleaved in a streaming pass, the pass counts as both
+      profiler.parsed.incrementAndGet()
+      val passNanos = System.nanoTime() - start
+      profiler.parseNanos.addAndGet(passNanos)
+      for (i <- accepted)
+        profiler.stats(i).transformNanos.addAndGet(passNanos)
+    }
+    if (!(visitors exists (_.changed)))
+      return header.bytes
+    val writeStart = if (profiler != null) System.nanoTime() else 0L
+    val result = writer.toByteArray
+    if (profiler != null)
+      profiler.recordWrite(accepted.indices.filter(visitors(_).changed).map(accepted), System.nanoTime() - writeStart, header.bytes.length, result.length)
+    result
+  }
+
+  /**
+   * Apply all given transformers to a [[ClassNode]], visitor based transformers rebuild the tree.
+   * @param header the header of the class to transform
+   * @param accepted the indices of the transformers which accepted the class
+   * @return a (modified) byte array representing the class
+   */
+  private def transformTree(header: ClassHeader, accepted: Seq[Int]): Array[Byte] = {
+    val profiler = this.profiler
+    var computeFrames: Boolean = false
+    val modifiers = mutable.ArrayBuffer.empty[Int]
+    val parseStart = if (profiler != null) System.nanoTime() else 0L
+    var clazz = new ClassNode()
+    header.reader.accept(clazz, 0)
+    var classInfo = ClassInfo.of(clazz)
+    if (profiler != null) {
+      profiler.parsed.incrementAndGet()
+      profiler.parseNanos.addAndGet(System.nanoTime() - parseStart)
+    }
+    for (i <- accepted) {
+      val transformer = transformers(i)
+      val start = if (profiler != null) System.nanoTime() else 0L
+      val changed = transformer match {
+        case t: VisitorTransformer =>
+          val result = new ClassNode()
+          val visitor = t.visitor(result, classInfo)
+          clazz.accept(visitor)
+          if (visitor.changed) {
+            clazz = result
+            classInfo = ClassInfo.of(clazz)
+          }
+          visitor.changed
+        case t =>
+          t.transform(clazz, classInfo)
+      }
+      if (profiler != null)
+        profiler.stats(i).transformNanos.addAndGet(System.nanoTime() - start)
+      if (changed) {
+        modifiers += i
+        computeFrames |= transformer.changesControlFlow
+      }
+    }
+    if (modifiers.nonEmpty) {
+      val writeStart = if (profiler != null) System.nanoTime() else 0L
+      val cw = new HierarchyClassWriter(header.reader, writerFlags(computeFrames), classInfo)
       clazz.accept(cw)
-      return cw.toByteArray
+      val result = cw.toByteArray
+      if (profiler != null)
+        profiler.recordWrite(modifiers, System.nanoTime() - writeStart, header.bytes.length, result.length)
+      return result
     }
-    bytes
+    header.bytes
   }
+
+  private def writerFlags(computeFrames: Boolean): Int = if (computeFrames) COMPUTE_FRAMES | COMPUTE_MAXS else COMPUTE_MAXS
 }
@@ -0,0 +1,296 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.asm.transformer
+
+import java.io._
+import java.lang.{Boolean => JBoolean}
+import java.net.{JarURLConnection, URL}
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.Collections
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList}
+
+import com.google.common.base.Charsets
+import com.google.common.hash.{Hasher, Hashing}
+import com.google.common.io.{Files => GFiles}
+import de.mineformers.core.asm.util.{ClassHeader, ClassInfo}
+import de.mineformers.core.util.Log
+import net.minecraft.launchwrapper.Launch
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * ClassCache
+ *
+ * Stores the output of a [[CachedClassTransformer]] on disk. Entries are keyed by the class name and a hash of the
+ * untransformed bytes. If the transformers looked up other classes while processing a class, e.g. to decide whether
+ * it is theirs, its entry also stores a hash of the class' supertypes, which is only computed again when the entry is
+ * about to be used. Classes the transformers decided on by their own bytes are served without touching the hierarchy.
+ * The whole file is invalidated as soon as the fingerprint of the code the transformers are loaded
+ * from changes. Only entries used during a run are written back, so outputs of removed classes don't pile up.
+ *
+ * @author PaleoCrafter
+ */
+class ClassCache(val file: File, val fingerprint: String) {
+  private val entries = new ConcurrentHashMap[String, ClassCache.Entry]()
+  private val used = Collections.newSetFromMap(new ConcurrentHashMap[String, JBoolean]())
+  @volatile private var dirty = false
+  load()
+
+  /**
+   * Hash the given class bytes
+   * @param bytes the untransformed bytes of a class
+   * @return a hash identifying the bytes
+   */
+  def hash(bytes: Array[Byte]): Array[Byte] = ClassCache.HashFunction.hashBytes(bytes).asBytes()
+
+  /**
+   * Hash the supertypes of a class
+   * @param bytes the untransformed bytes of a class
+   * @return a hash identifying the class' ancestry
+   */
+  def ancestry(bytes: Array[Byte]): Array[Byte] = {
+    val header = new ClassHeader(bytes)
+    val supers = try {
+      ClassInfo.of(header).getSupers.asScala.toSeq
+    } catch {
+      case e: RuntimeException =>
+        Option(header.superName).toSeq ++ header.interfaces
+    }
+    val hasher = ClassCache.HashFunction.newHasher()
+    for (name <- supers.sorted)
+      hasher.putString(name, Charsets.UTF_8)
+    hasher.hash().asBytes()
+  }
+
+  /**
+   * Look up the transformer output for a class.
+   * @param name the transformed name of the class
+   * @param hash the hash of the untransformed bytes
+   * @param bytes the untransformed bytes
+   * @return the cached output, the input bytes if the class was left untouched or null if there is no valid entry
+   */
+  def get(name: String, hash: Array[Byte], bytes: Array[Byte]): Array[Byte] = {
+    val entry = entries.get(name)
+    if (entry == null || !java.util.Arrays.equals(entry.hash, hash))
+      return null
+    if (entry.ancestry != null && !java.util.Arrays.equals(entry.ancestry, ancestry(bytes)))
+      return null
+    used.add(name)
+    if (entry.output == null)
+      bytes
+    else
+      entry.output
+  }
+
+  /**
+   * Store the transformer output for a class
+   * @param name the transformed name of the class
+   * @param hash the hash of the untransformed bytes
+   * @param ancestry the hash of the class' supertypes, null if the output doesn't depend on them
+   * @param input the untransformed bytes
+   * @param output the transformed bytes, may be the same instance as input if nothing was changed
+   */
+  def put(name: String, hash: Array[Byte], ancestry: Array[Byte], input: Array[Byte], output: Array[Byte]): Unit = {
+    entries.put(name, ClassCache.Entry(hash, ancestry, if (output eq input) null else output))
+    used.add(name)
+    dirty = true
+  }
+
+  /**
+   * Write the cache to disk if it was changed or contains unused entries since the last save
+   */
+  def save(): Unit = synchronized {
+    if (dirty || used.size < entries.size) {
+      dirty = false
+      write()
+    }
+  }
+
+  private def write(): Unit = {
+    val tmp = new File(file.getPath + ".tmp")
+    try {
+      file.getParentFile.mkdirs()
+      val snapshot = new java.util.HashMap[String, ClassCache.Entry]()
+      for (name <- used.asScala) {
+        val entry = entries.get(name)
+        if (entry != null)
+          snapshot.put(name, entry)
+      }
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))
+      try {
+        out.writeInt(ClassCache.Magic)
+        out.writeUTF(fingerprint)
+        out.writeInt(snapshot.size)
+        val it = snapshot.entrySet().iterator()
+        while (it.hasNext) {
+          val e = it.next()
+          out.writeUTF(e.getKey)
+          out.write(e.getValue.hash)
+          val ancestry = e.getValue.ancestry
+          out.writeBoolean(ancestry != null)
+          if (ancestry != null)
+            out.write(ancestry)
+          val output = e.getValue.output
+          if (output == null)
+            out.writeInt(-1)
+          else {
+            out.writeInt(output.length)
+            out.write(output)
+          }
+        }
+      } finally {
+        out.close()
+      }
+      Files.move(tmp.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING)
+    } catch {
+      case e: IOException =>
+        Log.warn("Failed to write class cache " + file, e)
+        tmp.delete()
+    }
+  }
+
+  private def load(): Unit = {
+    if (!file.isFile)
+      return
+    try {
+      val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+      try {
+        if (in.readInt() != ClassCache.Magic || in.readUTF() != fingerprint) {
+          Log.info("Transformers changed, discarding class cache " + file)
+          return
+        }
+        val count = in.readInt()
+        for (i <- 0 until count) {
+          val name = in.readUTF()
+          val hash = new Array[Byte](ClassCache.HashLength)
+          in.readFully(hash)
+          val ancestry = if (in.readBoolean()) new Array[Byte](ClassCache.HashLength) else null
+          if (ancestry != null)
+            in.readFully(ancestry)
+          val length = in.readInt()
+          val output = if (length < 0) null else new Array[Byte](length)
+          if (output != null)
+            in.readFully(output)
+          entries.put(name, ClassCache.Entry(hash, ancestry, output))
+        }
+      } finally {
+        in.close()
+      }
+    } catch {
+      case e: IOException =>
+        Log.warn("Failed to read class cache " + file + ", starting from scratch", e)
+        entries.clear()
+    }
+  }
+}
+
+object ClassCache {
+  private final val Magic = 0x4D464345
+  private final val HashLength = 16
+  private val HashFunction = Hashing.murmur3_128()
+  private val caches = new CopyOnWriteArrayList[ClassCache]()
+  Runtime.getRuntime.addShutdownHook(new Thread("MFCore class cache") {
+    override def run(): Unit = saveAll()
+  })
+
+  /**
+   * Caching can be turned off by launching with -Dmfcore.classCache=false
+   */
+  val Enabled = System.getProperty("mfcore.classCache", "true").toBoolean
+
+  private case class Entry(hash: Array[Byte], ancestry: Array[Byte], output: Array[Byte])
+
+  /**
+   * Open the cache for a transformer wrapper
+   * @param name a unique name for the wrapper, used as file name
+   * @param transformers the transformers registered to the wrapper
+   * @return the cache or null if caching is disabled
+   */
+  def open(name: String, transformers: Seq[ClassTransformer]): ClassCache = {
+    if (!Enabled || Launch.minecraftHome == null)
+      return null
+    val dir = new File(Launch.minecraftHome, "mfcore/classcache")
+    val cache = new ClassCache(new File(dir, name + ".bin"), fingerprint(transformers))
+    caches.add(cache)
+    cache
+  }
+
+  /**
+   * Write every opened cache to disk
+   */
+  def saveAll(): Unit = {
+    val it = caches.iterator()
+    while (it.hasNext)
+      it.next().save()
+  }
+
+  /**
+   * Compute a fingerprint of the given transformers, based on their names and the code they are loaded from.
+   * The jar or class directory of every transformer and of the cache itself is hashed completely, so changes to
+   * anonymous visitor classes and shared helpers invalidate the cache as well.
+   */
+  def fingerprint(transformers: Seq[ClassTransformer]): String = {
+    val hasher = HashFunction.newHasher()
+    val sources = mutable.LinkedHashSet.empty[File]
+    for (transformer <- transformers) {
+      hasher.putString(transformer.getClass.getName, Charsets.UTF_8)
+      hasher.putString(transformer.version, Charsets.UTF_8)
+      sources ++= codeSource(transformer.getClass)
+    }
+    sources ++= codeSource(classOf[ClassCache])
+    for (source <- sources)
+      hashSource(hasher, source)
+    hasher.hash().toString
+  }
+
+  /**
+   * @return the jar or class directory the given class was loaded from
+   */
+  private def codeSource(clazz: Class[_]): Option[File] = {
+    val path = clazz.getName.replace('.', '/') + ".class"
+    val url: URL = clazz.getResource("/" + path)
+    if (url == null)
+      None
+    else if (url.getProtocol == "jar")
+      Some(new File(url.openConnection().asInstanceOf[JarURLConnection].getJarFileURL.toURI))
+    else if (url.getProtocol == "file" && url.getPath.endsWith(path))
+      Some(new File(new File(url.toURI).getPath.stripSuffix(path.replace('/', File.separatorChar))))
+    else
+      None
+  }
+
+  private def hashSource(hasher: Hasher, source: File): Unit = {
+    if (source.isFile)
+      hasher.putBytes(GFiles.toByteArray(source))
+    else if (source.isDirectory) {
+      val children = source.listFiles()
+      if (children != null)
+        for (child <- children.sortBy(_.getName)) {
+          hasher.putString(child.getName, Charsets.UTF_8)
+          hashSource(hasher, child)
+        }
+    }
+  }
+}
@@ -23,7 +23,7 @@
  */
 package de.mineformers.core.asm.transformer
 
-import de.mineformers.core.asm.util.ClassInfo
+import de.mineformers.core.asm.util.{ClassHeader, ClassInfo}
 import org.objectweb.asm.tree.ClassNode
 
 /**
@@ -47,4 +47,31 @@ trait ClassTransformer {
    * @return true, if the transformer needs to edit it
    */
   def transforms(className: String): Boolean
+
+  /**
+   * Optional pre-filter working on the raw class bytes, called after [[transforms]] but before any [[ClassNode]] is
+   * built. Only the constant pool and the class header should be inspected here.
+   *
+   * @param header a lightweight view on the class' bytes
+   * @return false, if the transformer definitely does not need to edit the class
+   */
+  def accepts(header: ClassHeader): Boolean = true
+
+  /**
+   * Declare whether this transformer may alter the control flow of methods (jumps, exception handlers, new locals).
+   * If none of the transformers that changed a class do, the existing stack map frames are kept and only the maximum
+   * stack size and locals are recomputed.
+   *
+   * @return false, if the existing frames stay valid after this transformer ran
+   */
+  def changesControlFlow: Boolean = true
+
+  /**
+   * An additional version identifier included in the fingerprint of the on-disk [[ClassCache]].
+   * Changes to the transformer's own code invalidate the cache automatically, override this if the output also
+   * depends on something else.
+   *
+   * @return the version of this transformer
+   */
+  def version: String = "1"
 }
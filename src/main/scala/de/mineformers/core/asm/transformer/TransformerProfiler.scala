@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.asm.transformer
+
+import java.io.{File, FileWriter, IOException}
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+import de.mineformers.core.util.Log
+import net.minecraft.launchwrapper.Launch
+
+/**
+ * TransformerProfiler
+ *
+ * Collects statistics about the work done by the transformers registered to a [[CachedClassTransformer]].
+ * Enabled by launching with -Dmfcore.profileTransformers=true, the report is logged once the game finished loading
+ * and additionally written to the file given by -Dmfcore.transformerReport.
+ *
+ * @author PaleoCrafter
+ */
+class TransformerProfiler(val name: String, transformers: Seq[ClassTransformer]) {
+  /**
+   * The statistics of each transformer, in registration order
+   */
+  val stats = transformers.map(t => new TransformerProfiler.Stats(t.getClass.getName)).toArray
+  val classes = new AtomicLong
+  val cacheHits = new AtomicLong
+  val parsed = new AtomicLong
+  val written = new AtomicLong
+  val parseNanos = new AtomicLong
+  val writeNanos = new AtomicLong
+  val bytesIn = new AtomicLong
+  val bytesOut = new AtomicLong
+
+  /**
+   * Record a class written by the wrapper
+   * @param modifiers the indices of the transformers which changed the class
+   * @param nanos the time spent writing the class
+   * @param in the size of the untransformed class
+   * @param out the size of the transformed class
+   */
+  def recordWrite(modifiers: Seq[Int], nanos: Long, in: Int, out: Int): Unit = {
+    written.incrementAndGet()
+    writeNanos.addAndGet(nanos)
+    bytesIn.addAndGet(in)
+    bytesOut.addAndGet(out)
+    for (i <- modifiers) {
+      val s = stats(i)
+      s.modified.incrementAndGet()
+      s.writeNanos.addAndGet(nanos)
+      s.bytesIn.addAndGet(in)
+      s.bytesOut.addAndGet(out)
+    }
+  }
+
+  /**
+   * @return a table summarizing the collected statistics
+   */
+  def report: String = {
+    val b = new StringBuilder
+    b ++= "Class transformation report for " + name + "\n"
+    b ++= "%d classes, %d served from cache, %d parsed in %.1f ms, %d written in %.1f ms, %d bytes in, %d bytes out\n".format(
+      classes.get, cacheHits.get, parsed.get, millis(parseNanos.get), written.get, millis(writeNanos.get), bytesIn.get, bytesOut.get)
+    b ++= TransformerProfiler.RowFormat.format("Transformer", "Inspected", "Accepted", "Modified", "Filter ms", "Transform ms", "Write ms", "Bytes in", "Bytes out")
+    for (s <- stats)
+      b ++= TransformerProfiler.RowFormat.format(s.name, s.inspected.get, s.accepted.get, s.modified.get,
+        "%.1f".format(millis(s.filterNanos.get)), "%.1f".format(millis(s.transformNanos.get)),
+        "%.1f".format(millis(s.writeNanos.get)), s.bytesIn.get, s.bytesOut.get)
+    b.toString()
+  }
+
+  private def millis(nanos: Long): Double = nanos / 1000000.0
+}
+
+object TransformerProfiler {
+  private final val RowFormat = "%-60s %10s %10s %10s %10s %13s %10s %12s %12s\n"
+  private val profilers = new CopyOnWriteArrayList[TransformerProfiler]()
+
+  val Enabled = System.getProperty("mfcore.profileTransformers", "false").toBoolean
+  val ReportFile = System.getProperty("mfcore.transformerReport")
+
+  /**
+   * Statistics of a single transformer.
+   * Write time and sizes are shared by all transformers which changed a class, in a streaming pass the transform time
+   * covers the whole pass.
+   */
+  class Stats(val name: String) {
+    val inspected = new AtomicLong
+    val accepted = new AtomicLong
+    val modified = new AtomicLong
+    val filterNanos = new AtomicLong
+    val transformNanos = new AtomicLong
+    val writeNanos = new AtomicLong
+    val bytesIn = new AtomicLong
+    val bytesOut = new AtomicLong
+  }
+
+  /**
+   * Create the profiler for a transformer wrapper
+   * @param name the name of the wrapper
+   * @param transformers the transformers registered to the wrapper
+   * @return the profiler or null if profiling is disabled
+   */
+  def open(name: String, transformers: Seq[ClassTransformer]): TransformerProfiler = {
+    if (!Enabled)
+      return null
+    val profiler = new TransformerProfiler(name, transformers)
+    profilers.add(profiler)
+    profiler
+  }
+
+  /**
+   * Log the reports of all profilers and write them to the report file, if one was specified
+   */
+  def reportAll(): Unit = {
+    if (profilers.isEmpty)
+      return
+    val b = new StringBuilder
+    val it = profilers.iterator()
+    while (it.hasNext)
+      b ++= it.next().report
+    val report = b.toString()
+    Log.info(report)
+    if (ReportFile != null) {
+      val file = if (!new File(ReportFile).isAbsolute && Launch.minecraftHome != null) new File(Launch.minecraftHome, ReportFile) else new File(ReportFile)
+      try {
+        val writer = new FileWriter(file)
+        try {
+          writer.write(report)
+        } finally {
+          writer.close()
+        }
+      } catch {
+        case e: IOException =>
+          Log.warn("Failed to write transformer report to " + file, e)
+      }
+    }
+  }
+}
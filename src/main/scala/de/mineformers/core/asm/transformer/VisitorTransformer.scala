@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.asm.transformer
+
+import de.mineformers.core.asm.util.ClassInfo
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.{ClassVisitor, Opcodes}
+
+/**
+ * VisitorTransformer
+ *
+ * A [[ClassTransformer]] working on a [[ClassVisitor]] chain instead of a [[ClassNode]].
+ * If every transformer accepting a class is visitor based, [[CachedClassTransformer]] runs them in a single
+ * ClassReader → visitors → ClassWriter pass. Otherwise they are applied to the tree in registration order.
+ *
+ * @author PaleoCrafter
+ */
+trait VisitorTransformer extends ClassTransformer {
+  /**
+   * Create the visitor transforming a class
+   * @param next the visitor to delegate to
+   * @param info additional information about the class to transform
+   * @return a visitor which records whether it changed the class
+   */
+  def visitor(next: ClassVisitor, info: ClassInfo): TransformingVisitor
+
+  /**
+   * Run the visitor over a tree. [[CachedClassTransformer]] prefers to chain visitors in a single pass, this is used
+   * when a class is also transformed by tree based transformers.
+   * The class is visited into a new tree, which replaces the contents of the given one if the visitor changed it.
+   */
+  final override def transform(clazz: ClassNode, info: ClassInfo): Boolean = {
+    val result = new ClassNode()
+    val v = visitor(result, info)
+    clazz.accept(v)
+    if (v.changed)
+      VisitorTransformer.replace(clazz, result)
+    v.changed
+  }
+}
+
+object VisitorTransformer {
+  /**
+   * Replace the contents of a tree by those of another one
+   * @param target the tree to change
+   * @param source the tree to copy
+   */
+  private def replace(target: ClassNode, source: ClassNode): Unit = {
+    target.interfaces.clear()
+    target.innerClasses.clear()
+    target.fields.clear()
+    target.methods.clear()
+    target.sourceFile = null
+    target.sourceDebug = null
+    target.outerClass = null
+    target.outerMethod = null
+    target.outerMethodDesc = null
+    target.visibleAnnotations = null
+    target.invisibleAnnotations = null
+    target.visibleTypeAnnotations = null
+    target.invisibleTypeAnnotations = null
+    target.attrs = null
+    source.accept(target)
+  }
+}
+
+/**
+ * TransformingVisitor
+ *
+ * @param next the visitor to delegate to
+ * @author PaleoCrafter
+ */
+abstract class TransformingVisitor(next: ClassVisitor) extends ClassVisitor(Opcodes.ASM5, next) {
+  /**
+   * Set to true as soon as the visitor changes anything about the class
+   */
+  var changed = false
+}
@@ -0,0 +1,120 @@
+/*
+ *
+ *  * The MIT License (MIT)
+ *  *
+ *  * Copyright (c) 2014 MineFormers
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  *
+ *  * The above copyright notice and this permission notice shall be included in
+ *  * all copies or substantial portions of the Software.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  * THE SOFTWARE.
+ *
+ */
+package de.mineformers.core.asm.util
+
+import java.nio.charset.StandardCharsets
+
+import org.objectweb.asm.{ClassReader, Opcodes}
+
+/**
+ * ClassHeader
+ *
+ * A lightweight view on raw class bytes, only the constant pool and the class header are ever read.
+ * Used to reject classes before a full [[org.objectweb.asm.tree.ClassNode]] is built.
+ *
+ * @author PaleoCrafter
+ */
+class ClassHeader(val bytes: Array[Byte]) {
+  /**
+   * The reader backing this header, can be reused to build a full tree once a class passes every pre-filter
+   */
+  val reader = new ClassReader(bytes)
+
+  /**
+   * @return the access flags of the class
+   */
+  def access: Int = reader.getAccess
+
+  /**
+   * @return the internal name of the class
+   */
+  def name: String = reader.getClassName
+
+  /**
+   * @return the internal name of the superclass, null for java/lang/Object
+   */
+  def superName: String = reader.getSuperName
+
+  /**
+   * @return the internal names of all directly implemented interfaces
+   */
+  def interfaces: Array[String] = reader.getInterfaces
+
+  /**
+   * @return true, if the class is an interface
+   */
+  def isInterface: Boolean = (access & Opcodes.ACC_INTERFACE) != 0
+
+  /**
+   * Determine whether the constant pool contains a reference to the given class.
+   * Note that this only covers classes referenced directly, not types of fields or descriptors.
+   *
+   * @param internalName the internal name of the class to search for
+   * @return true, if the class is referenced
+   */
+  def referencesClass(internalName: String): Boolean = {
+    val buf = new Array[Char](reader.getMaxStringLength)
+    var i = 1
+    while (i < reader.getItemCount) {
+      val offset = reader.getItem(i)
+      if (offset > 0 && reader.b(offset - 1) == ClassHeader.ClassTag && internalName == reader.readUTF8(offset, buf))
+        return true
+      i += 1
+    }
+    false
+  }
+
+  /**
+   * Determine whether the constant pool contains the given string, e.g. a type descriptor or a member name.
+   * The comparison works on the raw bytes and does not allocate.
+   *
+   * @param value the string to search for
+   * @return true, if the string is part of the constant pool
+   */
+  def containsUtf8(value: String): Boolean = {
+    val search = value.getBytes(StandardCharsets.UTF_8)
+    val b = reader.b
+    var i = 1
+    while (i < reader.getItemCount) {
+      val offset = reader.getItem(i)
+      if (offset > 0 && b(offset - 1) == ClassHeader.Utf8Tag && reader.readUnsignedShort(offset) == search.length) {
+        var j = 0
+        val start = offset + 2
+        while (j < search.length && b(start + j) == search(j))
+          j += 1
+        if (j == search.length)
+          return true
+      }
+      i += 1
+    }
+    false
+  }
+}
+
+object ClassHeader {
+  private final val Utf8Tag = 1
+  private final val ClassTag = 7
+}
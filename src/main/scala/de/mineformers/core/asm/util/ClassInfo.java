@@ -1,7 +1,8 @@
 package de.mineformers.core.asm.util;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import net.minecraft.launchwrapper.Launch;
 import net.minecraftforge.fml.relauncher.ReflectionHelper;
@@ -25,6 +26,7 @@ import static org.objectweb.asm.Opcodes.*;
 public abstract class ClassInfo
 {
     private ClassInfo zuper;
+    private volatile Set<String> supers;
 
     // limit subclasses to this package
     ClassInfo()
@@ -53,6 +55,17 @@ public abstract class ClassInfo
         return new ClassInfoASM(clazz);
     }
 
+    /**
+     * <p>Create a {@code ClassInfo} representing the given raw class header, without building a ClassNode.</p>
+     *
+     * @param header the ClassHeader
+     * @return a ClassInfo
+     */
+    public static ClassInfo of(ClassHeader header)
+    {
+        return new ClassInfoHeader(header);
+    }
+
     /**
      * <p>Create a {@code ClassInfo} representing the given Type.</p>
      * <p>This method will try to avoid loading actual classes into the JVM, but will instead use the ASM library
@@ -91,7 +104,49 @@ public abstract class ClassInfo
         return create(ASMUtils.binaryName(className));
     }
 
+    /**
+     * Maximum number of interned {@code ClassInfo} instances and supertype sets, the values are additionally softly
+     * referenced so the garbage collector may reclaim them under memory pressure.
+     */
+    private static final int MAX_CACHED = 8192;
+
+    private static final Cache<String, ClassInfo> infoCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED)
+            .softValues()
+            .build();
+
+    private static final ThreadLocal<int[]> lookups = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1];
+        }
+    };
+
+    /**
+     * <p>Count the classes looked up by name on the current thread, cached or not. Comparing the count before and
+     * after a piece of code tells whether it depended on the class hierarchy.</p>
+     *
+     * @return the number of lookups on the current thread so far
+     */
+    public static int lookupCount()
+    {
+        return lookups.get()[0];
+    }
+
     static ClassInfo create(String className)
+    {
+        lookups.get()[0]++;
+        ClassInfo info = infoCache.getIfPresent(className);
+        if (info == null && (info = createUncached(className)) != null)
+        {
+            infoCache.put(className, info);
+        }
+        return info;
+    }
+
+    private static ClassInfo createUncached(String className)
     {
         switch (className)
         {
@@ -153,10 +208,17 @@ public abstract class ClassInfo
             }
             else
             {
+                String untransformed = SevenASMUtils.untransformName(className);
+                // the class is definitely not loaded, check the precomputed index first
+                HierarchyIndex.Entry entry = HierarchyIndex.get(untransformed);
+                if (entry != null)
+                {
+                    return new ClassInfoIndexed(entry);
+                }
                 try
                 {
-                    // the class is definitely not loaded, get it's bytes
-                    byte[] bytes = Launch.classLoader.getClassBytes(SevenASMUtils.untransformName(className));
+                    // get the class' bytes
+                    byte[] bytes = Launch.classLoader.getClassBytes(untransformed);
 
                     // somehow we can't access the class bytes (happens for JDK classes for example)
                     // we try and load the class now
@@ -299,10 +361,23 @@ public abstract class ClassInfo
      */
     public Set<String> getSupers()
     {
-        return getSupers(this);
+        Set<String> result = supers;
+        if (result == null)
+        {
+            supers = result = getSupers(this);
+        }
+        return result;
     }
 
-    public static Map<String, Set<String>> superCache = Maps.newHashMap();
+    /**
+     * Concurrent index of internal names to all of their supertypes, bounded like the {@code ClassInfo} cache.
+     * Set to null to disable caching.
+     */
+    public static Map<String, Set<String>> superCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED)
+            .softValues()
+            .<String, Set<String>>build()
+            .asMap();
 
     public static Set<String> getSupers(ClassInfo classInfo)
     {
@@ -0,0 +1,56 @@
+package de.mineformers.core.asm.util;
+
+import org.objectweb.asm.Type;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ClassInfoHeader
+ *
+ * @author PaleoCrafter
+ */
+final class ClassInfoHeader extends ClassInfo {
+
+    private final ClassHeader header;
+    private List<String> interfaces;
+
+    ClassInfoHeader(ClassHeader header) {
+        this.header = header;
+    }
+
+    @Override
+    public List<String> interfaces() {
+        if (interfaces == null) {
+            interfaces = Arrays.asList(header.interfaces());
+        }
+        return interfaces;
+    }
+
+    @Override
+    public String superName() {
+        return header.superName();
+    }
+
+    @Override
+    public String internalName() {
+        return header.name();
+    }
+
+    @Override
+    public int modifiers() {
+        return header.access();
+    }
+
+    @Override
+    public int getDimensions() {
+        // headers are only ever created from raw class bytes
+        return 0;
+    }
+
+    @Override
+    public Type getComponentType() {
+        throw new IllegalStateException("Not an array");
+    }
+
+}
@@ -0,0 +1,54 @@
+package de.mineformers.core.asm.util;
+
+import org.objectweb.asm.Type;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ClassInfoIndexed
+ *
+ * @author PaleoCrafter
+ */
+final class ClassInfoIndexed extends ClassInfo {
+
+    private final HierarchyIndex.Entry entry;
+    private final List<String> interfaces;
+
+    ClassInfoIndexed(HierarchyIndex.Entry entry) {
+        this.entry = entry;
+        this.interfaces = Arrays.asList(entry.interfaces);
+    }
+
+    @Override
+    public List<String> interfaces() {
+        return interfaces;
+    }
+
+    @Override
+    public String superName() {
+        return entry.superName;
+    }
+
+    @Override
+    public String internalName() {
+        return entry.name;
+    }
+
+    @Override
+    public int modifiers() {
+        return entry.access;
+    }
+
+    @Override
+    public int getDimensions() {
+        // array classes are never part of the index
+        return 0;
+    }
+
+    @Override
+    public Type getComponentType() {
+        throw new IllegalStateException("Not an array");
+    }
+
+}
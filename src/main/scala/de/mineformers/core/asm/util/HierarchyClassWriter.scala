@@ -0,0 +1,90 @@
+/*
+ *
+ *  * The MIT License (MIT)
+ *  *
+ *  * Copyright (c) 2014 MineFormers
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  *
+ *  * The above copyright notice and this permission notice shall be included in
+ *  * all copies or substantial portions of the Software.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  * THE SOFTWARE.
+ *
+ */
+package de.mineformers.core.asm.util
+
+import org.objectweb.asm.{ClassReader, ClassWriter}
+
+import scala.collection.JavaConverters._
+
+/**
+ * HierarchyClassWriter
+ *
+ * A [[ClassWriter]] which answers common superclass queries from [[ClassInfo]] instead of loading the classes
+ * through [[Class.forName]]. This avoids early class loading while frames are computed.
+ * The constant pool of the original class is copied, methods a visitor chain passes through untouched are copied as is.
+ *
+ * @param reader the reader of the untransformed class
+ * @param flags the flags to pass to the [[ClassWriter]]
+ * @param self information about the class being written, used instead of a lookup when it is queried
+ * @author PaleoCrafter
+ */
+class HierarchyClassWriter(reader: ClassReader, flags: Int, self: ClassInfo) extends ClassWriter(reader, flags) {
+  override protected def getCommonSuperClass(type1: String, type2: String): String = {
+    if (type1 == type2)
+      return type1
+    if (type1 == HierarchyClassWriter.Object || type2 == HierarchyClassWriter.Object)
+      return HierarchyClassWriter.Object
+    val info1 = lookup(type1)
+    val info2 = lookup(type2)
+    if (info1 == null || info2 == null)
+      return HierarchyClassWriter.Object
+    val supers2 = supers(info2)
+    if (supers2.contains(type1))
+      return type1
+    if (supers(info1).contains(type2))
+      return type2
+    if (info1.isInterface || info2.isInterface)
+      return HierarchyClassWriter.Object
+    var common = info1.superclass()
+    while (common != null) {
+      val name = remap(common.internalName())
+      if (supers2.contains(name))
+        return name
+      common = common.superclass()
+    }
+    HierarchyClassWriter.Object
+  }
+
+  private def lookup(name: String): ClassInfo =
+    if (self != null && remap(self.internalName()) == name) self else ClassInfo.of(name)
+
+  /**
+   * @return the class itself and all of its supertypes, in the namespace ASM uses
+   */
+  private def supers(info: ClassInfo): Set[String] =
+    info.getSupers.asScala.map(remap).toSet + remap(info.internalName())
+
+  /**
+   * Classes that aren't loaded yet are read from their untransformed bytes, which use obfuscated names in production,
+   * while ASM passes deobfuscated names. Names are mapped to the deobfuscated namespace before being compared or
+   * returned, so frames never mix the two. Names which already are deobfuscated are left as they are.
+   */
+  private def remap(name: String): String = SevenASMUtils.transformName(name)
+}
+
+object HierarchyClassWriter {
+  private final val Object = "java/lang/Object"
+}
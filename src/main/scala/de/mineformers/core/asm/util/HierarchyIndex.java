@@ -0,0 +1,360 @@
+package de.mineformers.core.asm.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import de.mineformers.core.util.Log;
+import net.minecraft.launchwrapper.Launch;
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * <p>A precomputed index of the class hierarchy found in the Minecraft jar, the libraries and the mods.</p>
+ * <p>The jars are scanned in parallel with thin {@link org.objectweb.asm.ClassReader} passes, only the class header is
+ * read. The result is stored on disk per jar, keyed by the jar's path and a fingerprint of its contents, so unchanged
+ * jars are never scanned twice. {@link ClassInfo} consults this index before reading any class bytes.</p>
+ * <p>Enabled by launching with {@code -Dmfcore.hierarchyIndex=true}.</p>
+ *
+ * @author PaleoCrafter
+ */
+public final class HierarchyIndex
+{
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mfcore.hierarchyIndex", "false"));
+    private static final int MAGIC = 0x4D464849;
+    private static volatile Map<String, Entry> index;
+
+    private HierarchyIndex()
+    {
+    }
+
+    /**
+     * The header of a single class
+     */
+    static final class Entry
+    {
+        final int access;
+        final String name;
+        final String superName;
+        final String[] interfaces;
+
+        Entry(int access, String name, String superName, String[] interfaces)
+        {
+            this.access = access;
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+    }
+
+    /**
+     * <p>Look up a class in the index.</p>
+     *
+     * @param internalName the untransformed internal name of the class
+     * @return the header of the class, or null if the index was not built or does not contain the class
+     */
+    static Entry get(String internalName)
+    {
+        Map<String, Entry> local = index;
+        return local == null ? null : local.get(internalName);
+    }
+
+    /**
+     * <p>Build the index from every jar on the launch class path and in the mods directory in the background, if
+     * enabled. Classes looked up before it is done are read from their bytes as usual.</p>
+     */
+    public static void buildDefault()
+    {
+        if (!ENABLED || Launch.minecraftHome == null)
+        {
+            return;
+        }
+        Set<File> jars = Sets.newLinkedHashSet();
+        for (URL url : Launch.classLoader.getSources())
+        {
+            try
+            {
+                File file = new File(url.toURI());
+                if (file.isFile() && file.getName().endsWith(".jar"))
+                {
+                    jars.add(file.getAbsoluteFile());
+                }
+            }
+            catch (URISyntaxException | IllegalArgumentException e)
+            {
+                // not a local file, nothing to scan
+            }
+        }
+        File[] mods = new File(Launch.minecraftHome, "mods").listFiles();
+        if (mods != null)
+        {
+            for (File mod : mods)
+            {
+                if (mod.isFile() && mod.getName().endsWith(".jar"))
+                {
+                    jars.add(mod.getAbsoluteFile());
+                }
+            }
+        }
+        final File cacheFile = new File(Launch.minecraftHome, "mfcore/hierarchy.idx");
+        final List<File> sources = Lists.newArrayList(jars);
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                build(cacheFile, sources);
+            }
+        }, "MFCore hierarchy index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * <p>Build the index from the given jars, reusing the sections of the cache file whose jars did not change.</p>
+     *
+     * @param cacheFile the file to store the index in
+     * @param jars      the jars to index, classes in earlier jars take precedence
+     */
+    public static void build(File cacheFile, List<File> jars)
+    {
+        long start = System.nanoTime();
+        final Map<String, Map<String, Entry>> cached = read(cacheFile);
+        List<Future<Section>> pending = Lists.newArrayListWithCapacity(jars.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "MFCore hierarchy scan");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Map<String, Entry>> sections = Lists.newArrayListWithCapacity(jars.size());
+        int scanned = 0;
+        try
+        {
+            for (final File jar : jars)
+            {
+                pending.add(executor.submit(new Callable<Section>()
+                {
+                    @Override
+                    public Section call() throws IOException
+                    {
+                        String key = jar.getPath() + ':' + fingerprint(jar);
+                        Map<String, Entry> entries = cached.get(key);
+                        return entries != null ? new Section(key, entries, false) : new Section(key, scan(jar), true);
+                    }
+                }));
+            }
+            Map<String, Map<String, Entry>> result = Maps.newLinkedHashMap();
+            for (int i = 0; i < jars.size(); ++i)
+            {
+                Section section;
+                try
+                {
+                    section = pending.get(i).get();
+                }
+                catch (ExecutionException e)
+                {
+                    Log.warn("Failed to scan " + jars.get(i) + " for the hierarchy index", e.getCause());
+                    sections.add(Collections.<String, Entry>emptyMap());
+                    continue;
+                }
+                if (section.scanned)
+                {
+                    scanned++;
+                }
+                result.put(section.key, section.entries);
+                sections.add(section.entries);
+            }
+            if (scanned > 0 || result.size() != cached.size())
+            {
+                write(cacheFile, result);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        int size = 0;
+        for (Map<String, Entry> section : sections)
+        {
+            size += section.size();
+        }
+        Map<String, Entry> merged = Maps.newHashMapWithExpectedSize(size);
+        // iterate backwards so classes from earlier jars win, like on the class path
+        for (int i = sections.size() - 1; i >= 0; --i)
+        {
+            merged.putAll(sections.get(i));
+        }
+        index = merged;
+        Log.info(String.format("Indexed %d classes from %d jars (%d scanned) in %.1f ms", merged.size(), jars.size(),
+                scanned, (System.nanoTime() - start) / 1000000.0));
+    }
+
+    /**
+     * <p>Fingerprint the contents of a jar from its central directory. It stores the CRC and size of every entry, so
+     * this detects changed contents without inflating any of them, unlike sizes and modification times it also holds
+     * up to jars being rebuilt or copied.</p>
+     *
+     * @param jar the jar to fingerprint
+     * @return a hash of the names, CRCs and sizes of all entries
+     */
+    private static String fingerprint(File jar) throws IOException
+    {
+        Hasher hasher = Hashing.sha1().newHasher();
+        try (ZipFile zip = new ZipFile(jar))
+        {
+            Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements())
+            {
+                ZipEntry entry = it.nextElement();
+                hasher.putString(entry.getName(), Charsets.UTF_8);
+                hasher.putLong(entry.getCrc());
+                hasher.putLong(entry.getSize());
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * The index entries of one jar
+     */
+    private static final class Section
+    {
+        final String key;
+        final Map<String, Entry> entries;
+        final boolean scanned;
+
+        Section(String key, Map<String, Entry> entries, boolean scanned)
+        {
+            this.key = key;
+            this.entries = entries;
+            this.scanned = scanned;
+        }
+    }
+
+    private static Map<String, Entry> scan(File jar) throws IOException
+    {
+        Map<String, Entry> entries = Maps.newHashMap();
+        try (ZipFile zip = new ZipFile(jar))
+        {
+            Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements())
+            {
+                ZipEntry entry = it.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/"))
+                {
+                    continue;
+                }
+                byte[] bytes;
+                try (InputStream in = zip.getInputStream(entry))
+                {
+                    bytes = ByteStreams.toByteArray(in);
+                }
+                try
+                {
+                    ClassReader reader = new ClassReader(bytes);
+                    Entry e = new Entry(reader.getAccess(), reader.getClassName(), reader.getSuperName(), reader.getInterfaces());
+                    entries.put(e.name, e);
+                }
+                catch (RuntimeException e)
+                {
+                    // malformed or unsupported class file, leave it to the class loader
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Map<String, Map<String, Entry>> read(File file)
+    {
+        Map<String, Map<String, Entry>> result = Maps.newHashMap();
+        if (!file.isFile())
+        {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                return result;
+            }
+            int jars = in.readInt();
+            for (int i = 0; i < jars; ++i)
+            {
+                String key = in.readUTF();
+                int count = in.readInt();
+                Map<String, Entry> section = Maps.newHashMapWithExpectedSize(count);
+                for (int j = 0; j < count; ++j)
+                {
+                    int access = in.readInt();
+                    String name = in.readUTF();
+                    String superName = in.readUTF();
+                    String[] interfaces = new String[in.readUnsignedShort()];
+                    for (int k = 0; k < interfaces.length; ++k)
+                    {
+                        interfaces[k] = in.readUTF();
+                    }
+                    section.put(name, new Entry(access, name, superName.isEmpty() ? null : superName, interfaces));
+                }
+                result.put(key, section);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.warn("Failed to read hierarchy index " + file + ", rebuilding it", e);
+            result.clear();
+        }
+        return result;
+    }
+
+    private static void write(File file, Map<String, Map<String, Entry>> sections)
+    {
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(sections.size());
+            for (Map.Entry<String, Map<String, Entry>> section : sections.entrySet())
+            {
+                out.writeUTF(section.getKey());
+                out.writeInt(section.getValue().size());
+                for (Entry e : section.getValue().values())
+                {
+                    out.writeInt(e.access);
+                    out.writeUTF(e.name);
+                    out.writeUTF(e.superName == null ? "" : e.superName);
+                    out.writeShort(e.interfaces.length);
+                    for (String iface : e.interfaces)
+                    {
+                        out.writeUTF(iface);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Log.warn("Failed to write hierarchy index " + file, e);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ *
+ *  * The MIT License (MIT)
+ *  *
+ *  * Copyright (c) 2014 MineFormers
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  *
+ *  * The above copyright notice and this permission notice shall be included in
+ *  * all copies or substantial portions of the Software.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  * THE SOFTWARE.
+ *
+ */
+package de.mineformers.core.asm.util
+
+import org.objectweb.asm.tree._
+
+import scala.collection.mutable
+
+/**
+ * InsnPattern
+ *
+ * A pattern over the real instructions of a method, compiled once and matched against an [[OpcodeIndex]].
+ * Patterns are sequences of single instruction matchers with optional wildcards for operands, gaps of arbitrary
+ * instructions and named captures, e.g.
+ * {{{
+ * val pattern = InsnPattern(
+ *   variable(ALOAD, 0),
+ *   gap(3),
+ *   method(INVOKEVIRTUAL, name = "markDirty").as("call"))
+ * val result = pattern.findFirst(OpcodeIndex(method))
+ * if (result != null) method.instructions.insert(result("call"), hook)
+ * }}}
+ * Patterns are compiled to a nondeterministic automaton, gaps become chains of optional states. Matching simulates all
+ * states at once while walking the instructions a single time, so a search takes at most instructions × states
+ * steps, no matter how wide the gaps are. The result is the same as with backtracking: the leftmost match, with as few
+ * instructions in each gap as possible. If the first element has fixed opcodes, instructions before the next
+ * candidate start taken from the index are skipped whenever no match is in progress.
+ *
+ * @author PaleoCrafter
+ */
+final class InsnPattern private(elements: Array[InsnPattern.Element], captures: Map[String, Int]) {
+  private val startOpcodes: Array[Int] = elements.headOption match {
+    case Some(s: InsnPattern.Single) => s.opcodes
+    case _ => null
+  }
+  /**
+   * The states of the automaton: one per instruction to match, one per optional gap instruction and the accepting
+   * state at the end. A null entry is an optional instruction.
+   */
+  private val states: Array[InsnPattern.Single] = {
+    val result = mutable.ArrayBuffer.empty[InsnPattern.Single]
+    for (e <- elements) e match {
+      case s: InsnPattern.Single => result += s
+      case g: InsnPattern.Gap =>
+        for (_ <- 0 until g.min)
+          result += InsnPattern.any
+        for (_ <- g.min until g.max)
+          result += null
+    }
+    result.toArray
+  }
+  private val accept = states.length
+
+  /**
+   * Find the first match in the given method
+   * @param index the opcode index of the method
+   * @return the match or null if the pattern does not occur
+   */
+  def findFirst(index: OpcodeIndex): InsnMatch = findFrom(index, 0)
+
+  /**
+   * Find the first match starting at or after the given position
+   * @param index the opcode index of the method
+   * @param from the position to start at
+   * @return the match or null if the pattern does not occur
+   */
+  def findFrom(index: OpcodeIndex, from: Int): InsnMatch = {
+    val insns = index.instructions
+    val starts = if (startOpcodes == null) null else candidates(index)
+    var nextStart = 0
+    if (starts != null)
+      while (nextStart < starts.length && starts(nextStart) < from)
+        nextStart += 1
+    var current = new InsnPattern.Threads(accept + 1)
+    var next = new InsnPattern.Threads(accept + 1)
+    var result: InsnMatch = null
+    var pos = from
+    while (pos <= insns.length) {
+      // new threads have the lowest priority, matches starting further left always win
+      if (result == null && (starts == null || (nextStart < starts.length && starts(nextStart) == pos))) {
+        add(current, 0, pos, new Array[AbstractInsnNode](captures.size))
+        if (starts != null)
+          nextStart += 1
+      }
+      if (current.size == 0) {
+        if (result != null || starts == null || nextStart >= starts.length)
+          return result
+        pos = starts(nextStart)
+      } else {
+        next.clear()
+        var i = 0
+        var cut = false
+        while (i < current.size && !cut) {
+          val state = current.states(i)
+          if (state == accept) {
+            // threads after this one have a lower priority, backtracking would never reach them
+            result = new InsnMatch(index, current.starts(i), pos, current.slots(i), captures)
+            cut = true
+          } else if (pos < insns.length) {
+            val s = states(state)
+            if (s == null)
+              add(next, state + 1, current.starts(i), current.slots(i))
+            else if (s.matches(insns(pos))) {
+              var slots = current.slots(i)
+              if (s.capture != null) {
+                slots = slots.clone()
+                slots(captures(s.capture)) = insns(pos)
+              }
+              add(next, state + 1, current.starts(i), slots)
+            }
+          }
+          i += 1
+        }
+        val swap = current
+        current = next
+        next = swap
+        pos += 1
+      }
+    }
+    result
+  }
+
+  /**
+   * Add a thread and the threads reachable from it without consuming an instruction, in order of priority.
+   * Skipping an optional instruction takes priority over consuming it, so gaps are as short as possible.
+   */
+  private def add(threads: InsnPattern.Threads, state: Int, start: Int, slots: Array[AbstractInsnNode]): Unit = {
+    if (threads.contains(state))
+      return
+    if (state < accept && states(state) == null)
+      add(threads, state + 1, start, slots)
+    threads.add(state, start, slots)
+  }
+
+  /**
+   * Find all non-overlapping matches in the given method
+   * @param index the opcode index of the method
+   * @return all matches in ascending order
+   */
+  def findAll(index: OpcodeIndex): Seq[InsnMatch] = {
+    val result = Seq.newBuilder[InsnMatch]
+    var m = findFirst(index)
+    while (m != null) {
+      result += m
+      m = findFrom(index, math.max(m.end, m.start + 1))
+    }
+    result.result()
+  }
+
+  /**
+   * Determine whether the pattern occurs anywhere in the given method
+   */
+  def occursIn(index: OpcodeIndex): Boolean = findFirst(index) != null
+
+  private def candidates(index: OpcodeIndex): Array[Int] = {
+    if (startOpcodes.length == 1)
+      index.positionsOf(startOpcodes(0))
+    else {
+      val merged = mutable.ArrayBuilder.make[Int]()
+      for (op <- startOpcodes)
+        merged ++= index.positionsOf(op)
+      val result = merged.result()
+      java.util.Arrays.sort(result)
+      result
+    }
+  }
+}
+
+/**
+ * InsnMatch
+ *
+ * @param index the index the match was found in
+ * @param start the position of the first matched instruction
+ * @param end the position after the last matched instruction
+ * @author PaleoCrafter
+ */
+final class InsnMatch private[util](val index: OpcodeIndex, val start: Int, val end: Int, slots: Array[AbstractInsnNode], captures: Map[String, Int]) {
+  private val captured = slots.clone()
+
+  /**
+   * @return the first matched instruction
+   */
+  def first: AbstractInsnNode = index.instructions(start)
+
+  /**
+   * @return the last matched instruction
+   */
+  def last: AbstractInsnNode = index.instructions(end - 1)
+
+  /**
+   * @return all matched instructions
+   */
+  def nodes: Seq[AbstractInsnNode] = index.instructions.slice(start, end)
+
+  /**
+   * Get a captured instruction
+   * @param name the name of the capture
+   * @return the instruction matched by the capture
+   */
+  def apply(name: String): AbstractInsnNode = captured(captures(name))
+}
+
+object InsnPattern {
+
+  /**
+   * The threads of the automaton at one position, in order of priority. Every state is present at most once.
+   */
+  private final class Threads(stateCount: Int) {
+    val states = new Array[Int](stateCount)
+    val starts = new Array[Int](stateCount)
+    val slots = new Array[Array[AbstractInsnNode]](stateCount)
+    private val present = new Array[Boolean](stateCount)
+    var size = 0
+
+    def contains(state: Int): Boolean = present(state)
+
+    def add(state: Int, start: Int, captured: Array[AbstractInsnNode]): Unit = {
+      present(state) = true
+      states(size) = state
+      starts(size) = start
+      slots(size) = captured
+      size += 1
+    }
+
+    def clear(): Unit = {
+      for (i <- 0 until size)
+        present(states(i)) = false
+      size = 0
+    }
+  }
+
+  /**
+   * Compile a pattern
+   * @param elements the elements of the pattern, in order
+   * @return the compiled pattern
+   */
+  def apply(elements: Element*): InsnPattern = {
+    require(elements.nonEmpty, "Patterns may not be empty")
+    val captures = mutable.LinkedHashMap.empty[String, Int]
+    for (e <- elements) e match {
+      case s: Single if s.capture != null =>
+        require(!captures.contains(s.capture), "Duplicate capture " + s.capture)
+        captures += s.capture -> captures.size
+      case _ =>
+    }
+    new InsnPattern(elements.toArray, captures.toMap)
+  }
+
+  sealed abstract class Element
+
+  /**
+   * Matches exactly one instruction
+   * @param opcodes the opcodes the instruction may have, null for any
+   * @param predicate an additional check for the operands
+   * @param capture the name to capture the instruction under, may be null
+   */
+  final class Single private[InsnPattern](val opcodes: Array[Int], predicate: AbstractInsnNode => Boolean, val capture: String) extends Element {
+    def matches(insn: AbstractInsnNode): Boolean =
+      (opcodes == null || contains(insn.getOpcode)) && (predicate == null || predicate(insn))
+
+    private def contains(opcode: Int): Boolean = {
+      var i = 0
+      while (i < opcodes.length) {
+        if (opcodes(i) == opcode)
+          return true
+        i += 1
+      }
+      false
+    }
+
+    /**
+     * Capture the instruction matched by this element
+     * @param name the name of the capture
+     * @return a new element with the capture
+     */
+    def as(name: String): Single = new Single(opcodes, predicate, name)
+  }
+
+  /**
+   * Matches between min and max arbitrary instructions, as few as possible
+   */
+  final case class Gap(min: Int, max: Int) extends Element {
+    require(min >= 0 && max >= min, "Invalid gap")
+  }
+
+  /**
+   * Match exactly the given instruction, see [[ASMUtils.matches]]
+   */
+  def insn(instruction: Instruction[_ <: AbstractInsnNode]): Single = {
+    val node = instruction.asm
+    new Single(Array(node.getOpcode), ASMUtils.matches(_, node), null)
+  }
+
+  /**
+   * Match any instruction with one of the given opcodes
+   */
+  def opcode(opcodes: Int*): Single = new Single(opcodes.toArray, null, null)
+
+  /**
+   * Match any instruction
+   */
+  def any: Single = new Single(null, null, null)
+
+  /**
+   * Match up to max arbitrary instructions
+   */
+  def gap(max: Int): Gap = Gap(0, max)
+
+  /**
+   * Match between min and max arbitrary instructions
+   */
+  def gap(min: Int, max: Int): Gap = Gap(min, max)
+
+  /**
+   * Match a method call, null operands act as wildcards
+   */
+  def method(opcode: Int, owner: String = null, name: String = null, desc: String = null): Single =
+    new Single(Array(opcode), {
+      case m: MethodInsnNode => (owner == null || owner == m.owner) && (name == null || name == m.name) && (desc == null || desc == m.desc)
+      case _ => false
+    }, null)
+
+  /**
+   * Match a field access, null operands act as wildcards
+   */
+  def field(opcode: Int, owner: String = null, name: String = null, desc: String = null): Single =
+    new Single(Array(opcode), {
+      case f: FieldInsnNode => (owner == null || owner == f.owner) && (name == null || name == f.name) && (desc == null || desc == f.desc)
+      case _ => false
+    }, null)
+
+  /**
+   * Match a local variable instruction, a negative index acts as wildcard
+   */
+  def variable(opcode: Int, index: Int = -1): Single =
+    new Single(Array(opcode), {
+      case v: VarInsnNode => index < 0 || v.`var` == index
+      case _ => false
+    }, null)
+
+  /**
+   * Match a type instruction, a null descriptor acts as wildcard
+   */
+  def typed(opcode: Int, desc: String = null): Single =
+    new Single(Array(opcode), {
+      case t: TypeInsnNode => desc == null || desc == t.desc
+      case _ => false
+    }, null)
+
+  /**
+   * Match a constant load, a null constant acts as wildcard
+   */
+  def ldc(cst: Any = null): Single =
+    new Single(Array(org.objectweb.asm.Opcodes.LDC), {
+      case l: LdcInsnNode => cst == null || cst == l.cst
+      case _ => false
+    }, null)
+}
@@ -0,0 +1,139 @@
+/*
+ *
+ *  * The MIT License (MIT)
+ *  *
+ *  * Copyright (c) 2014 MineFormers
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  *
+ *  * The above copyright notice and this permission notice shall be included in
+ *  * all copies or substantial portions of the Software.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  * THE SOFTWARE.
+ *
+ */
+package de.mineformers.core.asm.util
+
+import java.util
+
+import org.objectweb.asm.tree.{AbstractInsnNode, MethodNode}
+
+/**
+ * OpcodeIndex
+ *
+ * An index of the real instructions of a method, grouped by opcode. Labels, line numbers and frames are left out.
+ * The index is a snapshot, it has to be rebuilt once the method's instructions are edited.
+ *
+ * @param method the method to index
+ * @author PaleoCrafter
+ */
+final class OpcodeIndex(val method: MethodNode) {
+  /**
+   * All real instructions of the method, in order
+   */
+  val instructions: Array[AbstractInsnNode] = {
+    var count = 0
+    var insn = method.instructions.getFirst
+    while (insn != null) {
+      if (insn.getOpcode >= 0)
+        count += 1
+      insn = insn.getNext
+    }
+    val result = new Array[AbstractInsnNode](count)
+    var i = 0
+    insn = method.instructions.getFirst
+    while (insn != null) {
+      if (insn.getOpcode >= 0) {
+        result(i) = insn
+        i += 1
+      }
+      insn = insn.getNext
+    }
+    result
+  }
+
+  private val positions: Array[Array[Int]] = {
+    val counts = new Array[Int](OpcodeIndex.OpcodeCount)
+    for (insn <- instructions)
+      counts(insn.getOpcode) += 1
+    val result = Array.tabulate(OpcodeIndex.OpcodeCount)(op => if (counts(op) == 0) OpcodeIndex.Empty else new Array[Int](counts(op)))
+    util.Arrays.fill(counts, 0)
+    for (i <- instructions.indices) {
+      val op = instructions(i).getOpcode
+      result(op)(counts(op)) = i
+      counts(op) += 1
+    }
+    result
+  }
+
+  private lazy val reverse: util.IdentityHashMap[AbstractInsnNode, Integer] = {
+    val map = new util.IdentityHashMap[AbstractInsnNode, Integer](instructions.length)
+    for (i <- instructions.indices)
+      map.put(instructions(i), i)
+    map
+  }
+
+  /**
+   * @return the number of real instructions in the method
+   */
+  def size: Int = instructions.length
+
+  /**
+   * Get the positions of all instructions with the given opcode
+   * @param opcode the opcode to look up
+   * @return the positions in ascending order, do not modify the returned array
+   */
+  def positionsOf(opcode: Int): Array[Int] = positions(opcode)
+
+  /**
+   * @param opcode the opcode to count
+   * @return the number of instructions with the given opcode
+   */
+  def count(opcode: Int): Int = positions(opcode).length
+
+  /**
+   * @param opcode the opcode to look for
+   * @return the first instruction with the given opcode or null if there is none
+   */
+  def first(opcode: Int): AbstractInsnNode = {
+    val p = positions(opcode)
+    if (p.length == 0) null else instructions(p(0))
+  }
+
+  /**
+   * @param opcode the opcode to look for
+   * @return the last instruction with the given opcode or null if there is none
+   */
+  def last(opcode: Int): AbstractInsnNode = {
+    val p = positions(opcode)
+    if (p.length == 0) null else instructions(p(p.length - 1))
+  }
+
+  /**
+   * Look up the position of an instruction in constant time
+   * @param insn the instruction to look for
+   * @return the position of the instruction within [[instructions]] or -1 if it is not part of the index
+   */
+  def indexOf(insn: AbstractInsnNode): Int = {
+    val i = reverse.get(insn)
+    if (i == null) -1 else i.intValue()
+  }
+}
+
+object OpcodeIndex {
+  private final val OpcodeCount = 256
+  private val Empty = new Array[Int](0)
+
+  def apply(method: MethodNode): OpcodeIndex = new OpcodeIndex(method)
+}
@@ -23,6 +23,7 @@
  */
 package de.mineformers.core.block
 
+import de.mineformers.core.tileentity.MFTile
 import de.mineformers.core.util.Implicits.VBlockPos
 import net.minecraft.block.Block
 import net.minecraft.block.state.IBlockState
@@ -55,5 +56,16 @@ trait TileProvider[T <: TileEntity] {
     if (tileentity != null) tileentity.receiveClientEvent(eventId, eventArgument) else false
   }
 
+  /**
+   * Lets [[MFTile]]s react to neighbor changes, by default waking them up if they are sleeping.
+   * Blocks whose tiles sleep should call this from their `onNeighborBlockChange`, after their own logic.
+   */
+  def notifyNeighborChanged(world: World, pos: VBlockPos, neighbor: Block): Unit = {
+    world.getTileEntity(pos) match {
+      case tile: MFTile => tile.onNeighborChanged(neighbor)
+      case _ =>
+    }
+  }
+
   def tileClass: Class[T]
 }
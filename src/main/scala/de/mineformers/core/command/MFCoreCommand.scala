@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.command
+
+import java.util
+
+import de.mineformers.core.network.NetworkMetrics
+import de.mineformers.core.tileentity.TileProfiler
+import net.minecraft.command.{CommandBase, ICommandSender, WrongUsageException}
+import net.minecraft.util.{BlockPos, ChatComponentText}
+import net.minecraftforge.fml.relauncher.Side
+
+/**
+ * MFCoreCommand
+ *
+ * /mfcore net [client|server] [reset]: show or reset the network metrics of a side
+ * /mfcore tiles [client|server] [count]: show the tile classes taking the most time per tick
+ * /mfcore tiles start [sampling]|stop|reset: control the tile profiler
+ *
+ * @author PaleoCrafter
+ */
+class MFCoreCommand extends CommandBase {
+  override def getCommandName: String = "mfcore"
+
+  override def getCommandUsage(sender: ICommandSender): String =
+    "/mfcore net [client|server] [reset] | tiles [client|server] [count] | tiles <start [sampling]|stop|reset>"
+
+  override def getRequiredPermissionLevel: Int = 2
+
+  override def processCommand(sender: ICommandSender, args: Array[String]): Unit = {
+    args.headOption match {
+      case Some("net") =>
+        val side = if (args.contains("client")) Side.CLIENT else Side.SERVER
+        if (args.contains("reset")) {
+          NetworkMetrics.reset()
+          reply(sender, "Network metrics reset")
+        } else
+          reply(sender, NetworkMetrics.report(side))
+      case Some("tiles") =>
+        args.lift(1) match {
+          case Some("start") =>
+            val sampling = if (args.length > 2) CommandBase.parseInt(args(2), 1) else 1
+            TileProfiler.start(sampling)
+            reply(sender, "Tile profiler started, timing every " + sampling + ". tick")
+          case Some("stop") =>
+            TileProfiler.stop()
+            reply(sender, "Tile profiler stopped")
+          case Some("reset") =>
+            TileProfiler.reset()
+            reply(sender, "Tile profiler reset")
+          case _ =>
+            val side = if (args.contains("client")) Side.CLIENT else Side.SERVER
+            val count = args.drop(1).find(a => a.nonEmpty && a.forall(_.isDigit)).map(CommandBase.parseInt(_, 1)).getOrElse(10)
+            reply(sender, TileProfiler.report(side, count))
+        }
+      case _ =>
+        throw new WrongUsageException(getCommandUsage(sender))
+    }
+  }
+
+  override def addTabCompletionOptions(sender: ICommandSender, args: Array[String], pos: BlockPos): util.List[_] = args.length match {
+    case 1 => CommandBase.getListOfStringsMatchingLastWord(args, "net", "tiles")
+    case 2 | 3 if args(0) == "net" => CommandBase.getListOfStringsMatchingLastWord(args, "client", "server", "reset")
+    case 2 if args(0) == "tiles" => CommandBase.getListOfStringsMatchingLastWord(args, "client", "server", "start", "stop", "reset")
+    case _ => null
+  }
+
+  private def reply(sender: ICommandSender, text: String): Unit =
+    for (line <- text.split("\n"))
+      sender.addChatMessage(new ChatComponentText(line))
+}
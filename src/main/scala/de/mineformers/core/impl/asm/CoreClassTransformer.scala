@@ -36,5 +36,6 @@ class CoreClassTransformer extends CachedClassTransformer {
    */
   override def init(): Unit = {
     register(new MessageTransformer)
+    register(new DescribingTransformer)
   }
 }
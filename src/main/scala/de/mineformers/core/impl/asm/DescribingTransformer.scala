@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.impl.asm
+
+import de.mineformers.core.asm.transformer.{TransformingVisitor, VisitorTransformer}
+import de.mineformers.core.asm.util.{ClassHeader, ClassInfo}
+import org.objectweb.asm.Opcodes._
+import org.objectweb.asm.{AnnotationVisitor, ClassVisitor, FieldVisitor, MethodVisitor, Opcodes, Type}
+
+import scala.collection.mutable
+
+/**
+ * DescribingTransformer
+ *
+ * Makes [[de.mineformers.core.tileentity.Describable]] tiles track changes to their
+ * [[de.mineformers.core.tileentity.Describing]] fields. Every write to such a field inside its declaring class is
+ * followed by a call to `markDescriptionDirty`, and the class is marked with
+ * [[de.mineformers.core.tileentity.DescriptionTracking]].
+ * Writes in constructors are left alone, the object isn't initialized yet and the first description is always full.
+ *
+ * @author PaleoCrafter
+ */
+class DescribingTransformer extends VisitorTransformer {
+  final val DescribingDesc = "Lde/mineformers/core/tileentity/Describing;"
+  final val DescribableName = "de/mineformers/core/tileentity/Describable"
+  final val TrackingName = "de/mineformers/core/tileentity/DescriptionTracking"
+
+  /**
+   * Create the visitor transforming a describable class.
+   * Fields are visited before methods, so the described fields are known once the first method is visited.
+   * @param next the visitor to delegate to
+   * @param info additional information about the class to transform
+   * @return a visitor which records whether it changed the class
+   */
+  override def visitor(next: ClassVisitor, info: ClassInfo): TransformingVisitor = new TransformingVisitor(next) {
+    private val described = mutable.HashSet.empty[String]
+    private var className: String = _
+
+    override def visit(version: Int, access: Int, name: String, signature: String, superName: String, interfaces: Array[String]): Unit = {
+      className = name
+      if (interfaces.contains(TrackingName))
+        super.visit(version, access, name, signature, superName, interfaces)
+      else {
+        changed = true
+        super.visit(version, access, name, signature, superName, interfaces :+ TrackingName)
+      }
+    }
+
+    override def visitField(access: Int, name: String, desc: String, signature: String, value: AnyRef): FieldVisitor = {
+      val fv = super.visitField(access, name, desc, signature, value)
+      if ((access & ACC_STATIC) != 0)
+        fv
+      else new FieldVisitor(Opcodes.ASM5, fv) {
+        override def visitAnnotation(annotationDesc: String, visible: Boolean): AnnotationVisitor = {
+          if (annotationDesc == DescribingDesc)
+            described += name
+          super.visitAnnotation(annotationDesc, visible)
+        }
+      }
+    }
+
+    override def visitMethod(access: Int, name: String, desc: String, signature: String, exceptions: Array[String]): MethodVisitor = {
+      val mv = super.visitMethod(access, name, desc, signature, exceptions)
+      if (name == "<init>" || (access & ACC_STATIC) != 0 || described.isEmpty)
+        mv
+      else new MethodVisitor(Opcodes.ASM5, mv) {
+        override def visitFieldInsn(opcode: Int, owner: String, field: String, fieldDesc: String): Unit = {
+          if (opcode != PUTFIELD || owner != className || !described(field)) {
+            super.visitFieldInsn(opcode, owner, field, fieldDesc)
+            return
+          }
+          changed = true
+          if (Type.getType(fieldDesc).getSize == 2) {
+            // [obj, value] -> [obj, obj, value]
+            super.visitInsn(DUP2_X1)
+            super.visitInsn(POP2)
+            super.visitInsn(DUP_X2)
+            super.visitInsn(DUP_X2)
+            super.visitInsn(POP)
+            super.visitFieldInsn(opcode, owner, field, fieldDesc)
+          } else {
+            // [obj, value] -> [obj, value, obj, value], the second value is dropped after the write
+            super.visitInsn(DUP2)
+            super.visitFieldInsn(opcode, owner, field, fieldDesc)
+            super.visitInsn(POP)
+          }
+          super.visitMethodInsn(INVOKEINTERFACE, DescribableName, "markDescriptionDirty", "()V", true)
+        }
+      }
+    }
+  }
+
+  /**
+   * Determine whether the transformer needs to edit the given class.
+   *
+   * @param className the name of the class
+   * @return true, if the transformer needs to edit it
+   */
+  override def transforms(className: String): Boolean = true
+
+  /**
+   * Only straight-line stack operations are inserted, existing frames stay valid.
+   */
+  override def changesControlFlow: Boolean = false
+
+  /**
+   * Only describable classes referencing the annotation are transformed.
+   * The annotation check runs on the constant pool, the hierarchy is only looked up for classes passing it.
+   *
+   * @param header a lightweight view on the class' bytes
+   * @return true, if the class is a describable class with described fields
+   */
+  override def accepts(header: ClassHeader): Boolean = {
+    if (header.isInterface || !header.containsUtf8(DescribingDesc))
+      return false
+    val describable = ClassInfo.of(DescribableName)
+    val info = ClassInfo.of(header)
+    describable != null && info != null && describable.isAssignableFrom(info)
+  }
+}
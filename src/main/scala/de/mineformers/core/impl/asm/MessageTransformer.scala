@@ -23,56 +23,66 @@
  */
 package de.mineformers.core.impl.asm
 
-import de.mineformers.core.asm.transformer.ClassTransformer
-import de.mineformers.core.asm.util.ClassInfo
-import de.mineformers.core.asm.util.Hierarchy.Conversions._
-import de.mineformers.core.asm.util.Hierarchy.{Field, Method}
-import de.mineformers.core.asm.util.Instruction._
+import java.lang.{Boolean => JBoolean}
+import java.util.concurrent.ConcurrentHashMap
+
+import de.mineformers.core.asm.transformer.{TransformingVisitor, VisitorTransformer}
+import de.mineformers.core.asm.util.{ClassHeader, ClassInfo}
 import de.mineformers.core.network.Message
 import org.objectweb.asm.Opcodes._
-import org.objectweb.asm.Type
-import org.objectweb.asm.tree._
+import org.objectweb.asm.{ClassVisitor, FieldVisitor, MethodVisitor, Type}
 
 /**
  * MessageTransformer
  *
  * @author PaleoCrafter
  */
-class MessageTransformer extends ClassTransformer {
+class MessageTransformer extends VisitorTransformer {
   /**
-   * Transform the given [[ClassNode]]
-   * @param clazz the class to transform
+   * Create the visitor transforming a message class.
+   * Final fields the codec may write (see [[de.mineformers.core.network.MessageCodec.layout]]) are made public and
+   * mutable, as they have no setter the codec could call instead. All other fields keep their access.
+   * A default constructor is added if there is none.
+   * @param next the visitor to delegate to
    * @param info additional information about the class to transform
-   * @return true, if the class was changed, otherwise false
+   * @return a visitor which records whether it changed the class
    */
-  override def transform(clazz: ClassNode, info: ClassInfo): Boolean = {
-    import scala.collection.JavaConversions._
-    if (messInfo.isAssignableFrom(info)) {
-      for (i <- 0 until clazz.fields.length) {
-        val field = clazz.fields.get(i)
-        if ((field.access & ACC_FINAL) != 0) {
-          clazz.fields.set(i, Field(((field.access & (~ACC_FINAL)) & (~ACC_PRIVATE)) | ACC_PUBLIC, field.name, field.desc, field.signature, field.value))
-        }
-      }
-      var foundDefault = false
-      for (method <- clazz.methods) {
-        if (method.name == "<init>" && method.desc == "()V")
-          foundDefault = true
-      }
+  override def visitor(next: ClassVisitor, info: ClassInfo): TransformingVisitor = new TransformingVisitor(next) {
+    private var foundDefault = false
+
+    override def visitField(access: Int, name: String, desc: String, signature: String, value: AnyRef): FieldVisitor = {
+      if ((access & (ACC_STATIC | ACC_TRANSIENT | ACC_SYNTHETIC)) == 0 && (access & ACC_FINAL) != 0) {
+        changed = true
+        super.visitField((access & ~(ACC_FINAL | ACC_PRIVATE | ACC_PROTECTED)) | ACC_PUBLIC, name, desc, signature, value)
+      } else
+        super.visitField(access, name, desc, signature, value)
+    }
+
+    override def visitMethod(access: Int, name: String, desc: String, signature: String, exceptions: Array[String]): MethodVisitor = {
+      if (name == "<init>" && desc == "()V")
+        foundDefault = true
+      super.visitMethod(access, name, desc, signature, exceptions)
+    }
+
+    override def visitEnd(): Unit = {
       if (!foundDefault) {
-        val method = Method(ACC_PUBLIC, "<init>", "()V")
-        method.instructions.add(Var(ALOAD, 0))
-        method.instructions.add(MethodOp(INVOKESPECIAL, info.superName(), "<init>", "()V"))
-        method.instructions.add(Simple(RETURN))
-        clazz.methods.add(method)
+        changed = true
+        val mv = super.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, info.superName(), "<init>", "()V", false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
       }
-      true
-    } else
-      false
+      super.visitEnd()
+    }
   }
 
   val equalsDesc = Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getObjectType("java/lang/Object"))
   val messInfo = ClassInfo.of(classOf[Message])
+  val messName = Type.getInternalName(classOf[Message])
+  private val messageSupers = new ConcurrentHashMap[String, JBoolean]()
 
   /**
    * Determine whether the transformer needs to edit the given class.
@@ -81,4 +91,37 @@ class MessageTransformer extends ClassTransformer {
    * @return true, if the transformer needs to edit it
    */
   override def transforms(className: String): Boolean = true
+
+  /**
+   * Only access flags are changed and a branch-free constructor is added, existing frames stay valid.
+   */
+  override def changesControlFlow: Boolean = false
+
+  /**
+   * Reject every class that does not extend [[Message]] without building a tree.
+   * The results for superclasses are cached, since most classes share a handful of them.
+   *
+   * @param header a lightweight view on the class' bytes
+   * @return true, if the class is a message, [[Message]] itself is left alone
+   */
+  override def accepts(header: ClassHeader): Boolean = {
+    if (header.isInterface)
+      return false
+    val superName = header.superName
+    if (superName == null)
+      return false
+    superName == messName || extendsMessage(superName)
+  }
+
+  private def extendsMessage(className: String): Boolean = {
+    if (className == "java/lang/Object")
+      return false
+    val cached = messageSupers.get(className)
+    if (cached != null)
+      return cached
+    val info = ClassInfo.of(className)
+    val result = info != null && messInfo.isAssignableFrom(info)
+    messageSupers.put(className, result)
+    result
+  }
 }
@@ -36,7 +36,27 @@ trait Networking {
   this: MFMod =>
   def channel: String = ModId
 
-  lazy val net = new MFNetworkWrapper(channel)
+  /**
+   * @return true, if the mod's messages should use the compact wire format
+   */
+  def compactMessages: Boolean = false
+
+  /**
+   * @return true, if messages sent by the server should be batched per player and tick
+   */
+  def batchMessages: Boolean = false
+
+  /**
+   * @return the payload size from which messages are compressed, 0 to disable compression
+   */
+  def compressionThreshold: Int = 0
+
+  /**
+   * @return the number of bytes sent to each player per tick, 0 for no limit
+   */
+  def bandwidthBudget: Int = 0
+
+  lazy val net = new MFNetworkWrapper(channel, compactMessages, batchMessages, compressionThreshold, bandwidthBudget)
 
   def registerMessage[T <: Message](implicit ev: ClassTag[T]): Unit = {
     net.register()(ev)
@@ -0,0 +1,59 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * BatchMessage
+ *
+ * Carries all messages queued for one player during a tick. Each entry is framed by its length and starts with the
+ * discriminator of the contained message.
+ *
+ * @author PaleoCrafter
+ */
+class BatchMessage(var count: Int, var payload: ByteBuf) extends Message {
+  def this() = this(0, null)
+
+  override def toBytes(buf: ByteBuf): Unit = {
+    WireFormat.writeVarInt(buf, count)
+    buf.writeBytes(payload, payload.readerIndex, payload.readableBytes)
+  }
+
+  /**
+   * Received batches hold a retained slice of the packet, which is released once the entries are dispatched
+   */
+  override def fromBytes(buf: ByteBuf): Unit = {
+    count = WireFormat.readVarInt(buf)
+    payload = buf.readSlice(buf.readableBytes).retain()
+  }
+}
+
+object BatchMessage {
+  /**
+   * The discriminator reserved for batches on channels with batching enabled
+   */
+  final val Discriminator: Byte = -1
+}
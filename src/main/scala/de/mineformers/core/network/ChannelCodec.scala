@@ -0,0 +1,52 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelHandlerContext
+import net.minecraftforge.fml.common.network.NetworkRegistry
+import net.minecraftforge.fml.common.network.simpleimpl.{IMessage, SimpleIndexedCodec}
+import net.minecraftforge.fml.relauncher.Side
+
+/**
+ * ChannelCodec
+ *
+ * Channel codec writing messages in the channel's wire format instead of the one their class defaults to.
+ *
+ * @param compact true, if the channel uses the compact wire format
+ * @author PaleoCrafter
+ */
+class ChannelCodec(val compact: Boolean) extends SimpleIndexedCodec {
+  override def encodeInto(ctx: ChannelHandlerContext, msg: IMessage, target: ByteBuf): Unit =
+    Message.write(msg, target, compact, side(ctx))
+
+  override def decodeInto(ctx: ChannelHandlerContext, source: ByteBuf, msg: IMessage): Unit =
+    Message.read(msg, source, compact, side(ctx))
+
+  /**
+   * @return the side of the channel the codec is running on
+   */
+  protected def side(ctx: ChannelHandlerContext): Side = ctx.channel.attr(NetworkRegistry.CHANNEL_SOURCE).get
+}
@@ -0,0 +1,51 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import io.netty.buffer.ByteBuf
+import net.minecraftforge.fml.common.network.ByteBufUtils
+
+/**
+ * DescriptionClassesMessage
+ *
+ * Tells the client which ids the server assigned to describable classes.
+ *
+ * @author PaleoCrafter
+ */
+class DescriptionClassesMessage(var start: Int, var classes: Array[String]) extends Message {
+  def this() = this(0, null)
+
+  override def toBytes(buf: ByteBuf): Unit = {
+    WireFormat.writeVarInt(buf, start)
+    WireFormat.writeVarInt(buf, classes.length)
+    for (name <- classes)
+      ByteBufUtils.writeUTF8String(buf, name)
+  }
+
+  override def fromBytes(buf: ByteBuf): Unit = {
+    start = WireFormat.readVarInt(buf)
+    classes = Array.fill(WireFormat.readVarInt(buf))(ByteBufUtils.readUTF8String(buf))
+  }
+}
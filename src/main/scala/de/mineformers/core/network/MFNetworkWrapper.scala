@@ -23,28 +23,50 @@
  */
 package de.mineformers.core.network
 
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
+
 import com.google.common.collect.Maps
+import de.mineformers.core.network.HandlerThread.HandlerThread
 import de.mineformers.core.network.Message.NetReaction
+import de.mineformers.core.network.MessagePriority.MessagePriority
+import de.mineformers.core.util.Implicits.VBlockPos
 import de.mineformers.core.util.Log
-import io.netty.channel.{ChannelFutureListener, ChannelHandlerContext, SimpleChannelInboundHandler}
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.{ChannelFuture, ChannelFutureListener, ChannelHandlerContext, SimpleChannelInboundHandler}
 import net.minecraft.entity.player.EntityPlayerMP
-import net.minecraft.network.{INetHandler, Packet}
-import net.minecraftforge.fml.common.network.simpleimpl.SimpleIndexedCodec
+import net.minecraft.network.{INetHandler, Packet, PacketBuffer}
+import net.minecraft.server.MinecraftServer
+import net.minecraftforge.fml.common.FMLCommonHandler
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import net.minecraftforge.fml.common.network.internal.FMLProxyPacket
 import net.minecraftforge.fml.common.network.{FMLOutboundHandler, NetworkRegistry}
 import net.minecraftforge.fml.relauncher.Side
 import org.apache.logging.log4j.Level
 
-import scala.collection.mutable.ListBuffer
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 import scala.reflect.ClassTag
-import scala.util.control.Breaks
 
 /**
  * MFCodec
  *
+ * @param channelName the name of the channel
+ * @param compact if true, messages sent through this channel use the compact wire format, independent of the format
+ *                other channels use for the same classes
+ * @param batching if true, messages sent by the server are collected per player and flushed as one batch at the end
+ *                 of the tick
+ * @param compressionThreshold if positive, message payloads of at least this many bytes are compressed
+ * @param bandwidthBudget if positive, the number of bytes sent to each player per tick, messages exceeding it are sent
+ *                        later according to their [[MessagePriority]]
  * @author PaleoCrafter
  */
-class MFNetworkWrapper(channelName: String) {
-  private val packetCodec = new SimpleIndexedCodec
+class MFNetworkWrapper(channelName: String, compact: Boolean = false, batching: Boolean = false, compressionThreshold: Int = 0,
+                       bandwidthBudget: Int = 0) {
+  private val packetCodec = if (compressionThreshold > 0) new CompressingCodec(compressionThreshold, compact) else new ChannelCodec(compact)
+  private val discriminators = mutable.HashMap.empty[Class[_ <: Message], Byte]
+  private val types = mutable.HashMap.empty[Byte, Class[_ <: Message]]
   private val channels = NetworkRegistry.INSTANCE.newChannel(channelName, packetCodec)
   private val handlers = {
     val result = Maps.newEnumMap[Side, PartialFunctionChannelHandler](classOf[Side])
@@ -52,25 +74,58 @@ class MFNetworkWrapper(channelName: String) {
       val handler = new PartialFunctionChannelHandler(side)
       result.put(side, handler)
       val channel = channels.get(side)
-      channel.pipeline.addAfter(channel.findChannelHandlerNameForType(classOf[SimpleIndexedCodec]), handler.toString, handler)
+      channel.pipeline.addAfter(channel.findChannelHandlerNameForType(packetCodec.getClass), handler.toString, handler)
     }
     result
   }
   private var lastDiscriminator: Byte = 0
+  private val outbox = if (batching || bandwidthBudget > 0) new Outbox else null
 
   def register[M <: Message]()(implicit ev: ClassTag[M]): Unit = {
-    packetCodec.addDiscriminator(lastDiscriminator, ev.runtimeClass.asInstanceOf[Class[M]])
+    register0(lastDiscriminator, ev.runtimeClass.asInstanceOf[Class[M]])
     lastDiscriminator = (lastDiscriminator + 1).toByte
   }
 
   def register[M <: Message](discriminator: Byte)(implicit ev: ClassTag[M]): Unit = {
-    packetCodec.addDiscriminator(discriminator, ev.runtimeClass.asInstanceOf[Class[M]])
+    register0(discriminator, ev.runtimeClass.asInstanceOf[Class[M]])
     if (lastDiscriminator < discriminator)
       lastDiscriminator = discriminator
   }
 
-  def addHandler(reaction: NetReaction, side: Side): Unit = {
-    handlers.get(side).addReaction(reaction)
+  private def register0[M <: Message](discriminator: Byte, clazz: Class[M]): Unit = {
+    packetCodec.addDiscriminator(discriminator, clazz)
+    discriminators(clazz) = discriminator
+    types(discriminator) = clazz
+  }
+
+  /**
+   * Add a handler for all messages it is defined at. These handlers are tried for every incoming message, prefer
+   * [[addTypedHandler]] where possible.
+   *
+   * @param reaction the handler, a reply returned from it is sent back to the sender unless a handler added later
+   *                 replies to the same message
+   * @param side the side to receive messages on
+   * @param thread the thread to run the handler on
+   */
+  def addHandler(reaction: NetReaction, side: Side, thread: HandlerThread = HandlerThread.Network): Unit = {
+    handlers.get(side).addReaction(classOf[Message], thread, {
+      (msg, ctx) =>
+        val param = (msg, ctx)
+        if (reaction.isDefinedAt(param)) reaction(param) else null
+    })
+  }
+
+  /**
+   * Add a handler for one type of message, it is only called for messages of that class or its subclasses.
+   *
+   * @param side the side to receive messages on
+   * @param thread the thread to run the handler on
+   * @param handler the handler, a reply returned from it is sent back to the sender unless a handler added later
+   *                replies to the same message
+   * @tparam M the type of message to handle
+   */
+  def addTypedHandler[M <: Message](side: Side, thread: HandlerThread = HandlerThread.Network)(handler: (M, Message.Context) => Message)(implicit ev: ClassTag[M]): Unit = {
+    handlers.get(side).addReaction(ev.runtimeClass, thread, handler.asInstanceOf[(Message, Message.Context) => Message])
   }
 
   /**
@@ -89,8 +144,7 @@ class MFNetworkWrapper(channelName: String) {
    * @param message The message to send
    */
   def sendToAll(message: Message) {
-    channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGET).set(FMLOutboundHandler.OutboundTarget.ALL)
-    channels.get(Side.SERVER).writeAndFlush(message).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
+    broadcast(message, players)
   }
 
   /**
@@ -101,6 +155,15 @@ class MFNetworkWrapper(channelName: String) {
    * @param player The player to send it to
    */
   def sendTo(message: Message, player: EntityPlayerMP) {
+    if (NetworkMetrics.Enabled)
+      NetworkMetrics.recordSend(message.getClass, Side.SERVER, 1)
+    if (outbox != null)
+      outbox.queue(message, Seq(player))
+    else
+      sendDirect(message, player)
+  }
+
+  private def sendDirect(message: Message, player: EntityPlayerMP) {
     channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGET).set(FMLOutboundHandler.OutboundTarget.PLAYER)
     channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGETARGS).set(player)
     channels.get(Side.SERVER).writeAndFlush(message).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
@@ -114,9 +177,32 @@ class MFNetworkWrapper(channelName: String) {
    * @param point The { @link TargetPoint} around which to send
    */
   def sendToAllAround(message: Message, point: NetworkRegistry.TargetPoint) {
-    channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGET).set(FMLOutboundHandler.OutboundTarget.ALLAROUNDPOINT)
-    channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGETARGS).set(point)
-    channels.get(Side.SERVER).writeAndFlush(message).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
+    broadcast(message, PlayerIndex.playersAround(point))
+  }
+
+  /**
+   * Send this message to everyone who has the given chunk loaded.
+   * The reaction for this message type should be on the CLIENT side.
+   *
+   * @param message The message to send
+   * @param dimensionId The dimension the chunk is in
+   * @param chunkX The x coordinate of the chunk
+   * @param chunkZ The z coordinate of the chunk
+   */
+  def sendToAllWatching(message: Message, dimensionId: Int, chunkX: Int, chunkZ: Int) {
+    broadcast(message, PlayerIndex.playersWatching(dimensionId, chunkX, chunkZ))
+  }
+
+  /**
+   * Send this message to everyone who has the chunk containing the given position loaded.
+   * The reaction for this message type should be on the CLIENT side.
+   *
+   * @param message The message to send
+   * @param dimensionId The dimension the position is in
+   * @param pos The position
+   */
+  def sendToAllWatching(message: Message, dimensionId: Int, pos: VBlockPos) {
+    sendToAllWatching(message, dimensionId, pos.getX >> 4, pos.getZ >> 4)
   }
 
   /**
@@ -127,11 +213,66 @@ class MFNetworkWrapper(channelName: String) {
    * @param dimensionId The dimension id to target
    */
   def sendToDimension(message: Message, dimensionId: Int) {
-    channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGET).set(FMLOutboundHandler.OutboundTarget.DIMENSION)
-    channels.get(Side.SERVER).attr(FMLOutboundHandler.FML_MESSAGETARGETARGS).set(Integer.valueOf(dimensionId))
-    channels.get(Side.SERVER).writeAndFlush(message).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
+    broadcast(message, players.filter(_.dimension == dimensionId))
+  }
+
+  /**
+   * Send a message to several players. The message is encoded once, every player is sent a duplicate of the same
+   * buffer holding its own reference.
+   *
+   * @param message the message to send
+   * @param recipients the players to send it to
+   */
+  private def broadcast(message: Message, recipients: Seq[EntityPlayerMP]): Unit = {
+    if (NetworkMetrics.Enabled)
+      NetworkMetrics.recordSend(message.getClass, Side.SERVER, recipients.size)
+    if (recipients.isEmpty)
+      return
+    if (outbox != null) {
+      outbox.queue(message, recipients)
+      return
+    }
+    val payload = encode(message)
+    try {
+      for (player <- recipients)
+        sendPayload(player, payload.retain())
+    } finally {
+      payload.release()
+    }
+  }
+
+  /**
+   * Send an encoded message to a player. [[FMLProxyPacket]] never releases its buffer, so the reference passed in is
+   * released once the packet has been written or failed to be written.
+   *
+   * @param player the player to send the message to
+   * @param payload the encoded message, one reference of which is taken over
+   */
+  private def sendPayload(player: EntityPlayerMP, payload: ByteBuf): Unit = {
+    val packet = new FMLProxyPacket(new PacketBuffer(payload.duplicate()), channelName)
+    player.playerNetServerHandler.netManager.sendPacket(packet, new ChannelFutureListener {
+      override def operationComplete(future: ChannelFuture): Unit = payload.release()
+    })
   }
 
+  /**
+   * Encode a message on the server the same way the channel's codec does: its discriminator followed by its data
+   * @param compress false, if the data should not be compressed even if the channel uses compression.
+   *                 Used for batch entries, as the batch as a whole is compressed.
+   */
+  private def encode(message: Message, compress: Boolean = true): ByteBuf = {
+    val buf = Unpooled.buffer()
+    buf.writeByte(discriminators(message.getClass))
+    if (compress && compressionThreshold > 0)
+      MessageCompression.write(message, buf, compressionThreshold, compact, Side.SERVER)
+    else
+      Message.write(message, buf, compact, Side.SERVER)
+    buf
+  }
+
+  private def players: Seq[EntityPlayerMP] =
+    MinecraftServer.getServer.getConfigurationManager.playerEntityList.asInstanceOf[java.util.List[EntityPlayerMP]].asScala
+
   /**
    * Send this message to the server.
    * The reaction for this message type should be on the SERVER side.
@@ -139,37 +280,317 @@ class MFNetworkWrapper(channelName: String) {
    * @param message The message to send
    */
   def sendToServer(message: Message) {
+    if (NetworkMetrics.Enabled)
+      NetworkMetrics.recordSend(message.getClass, Side.CLIENT, 1)
     channels.get(Side.CLIENT).attr(FMLOutboundHandler.FML_MESSAGETARGET).set(FMLOutboundHandler.OutboundTarget.TOSERVER)
     channels.get(Side.CLIENT).writeAndFlush(message).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
   }
 
+  /**
+   * Collects the messages the server sends during a tick per player and sends them at the end of the tick, either as
+   * [[BatchMessage]]s or one by one. With a bandwidth budget, messages are sent in order of their priority until the
+   * player's budget for the tick is used up, the rest waits for the next tick. Low priority messages that have waited
+   * for too long are dropped.
+   * Messages are encoded when they are queued, so later changes to them are not picked up.
+   */
+  class Outbox {
+    private final val MaxBatchBytes = 512 * 1024
+    private final val MaxLowPriorityDelay = 20
+    private val lock = new Object
+    private val pending = mutable.LinkedHashMap.empty[EntityPlayerMP, Queue]
+    if (batching)
+      packetCodec.addDiscriminator(BatchMessage.Discriminator, classOf[BatchMessage])
+    FMLCommonHandler.instance().bus().register(this)
+
+    def queue(message: Message, recipients: Seq[EntityPlayerMP]): Unit = {
+      val encoded = encode(message, compress = !batching)
+      val clazz = message.getClass
+      val key = message.coalescingKey
+      val priority = message.priority
+      try {
+        lock.synchronized {
+          for (player <- recipients)
+            pending.getOrElseUpdate(player, new Queue).add(new Entry(clazz, key, priority, encoded.retain()))
+        }
+      } finally {
+        encoded.release()
+      }
+    }
+
+    @SubscribeEvent
+    def onServerTick(event: TickEvent.ServerTickEvent): Unit = {
+      if (event.phase == TickEvent.Phase.END) {
+        val ready = ListBuffer.empty[(EntityPlayerMP, Seq[Entry])]
+        lock.synchronized {
+          if (pending.nonEmpty) {
+            val online = players.toSet
+            val done = ListBuffer.empty[EntityPlayerMP]
+            for ((player, queue) <- pending) {
+              if (!online(player))
+                queue.discard()
+              else {
+                val entries = queue.take(bandwidthBudget)
+                if (entries.nonEmpty)
+                  ready += player -> entries
+              }
+              if (queue.isEmpty)
+                done += player
+            }
+            pending --= done
+          }
+        }
+        for ((player, entries) <- ready)
+          send(player, entries)
+      }
+    }
+
+    private def send(player: EntityPlayerMP, entries: Seq[Entry]): Unit = {
+      if (batching) {
+        var batch = new BatchMessage(0, Unpooled.buffer())
+        for (entry <- entries) {
+          if (batch.count > 0 && batch.payload.readableBytes + entry.size > MaxBatchBytes) {
+            sendDirect(batch, player)
+            batch = new BatchMessage(0, Unpooled.buffer())
+          }
+          WireFormat.writeVarInt(batch.payload, entry.size)
+          batch.payload.writeBytes(entry.payload, entry.payload.readerIndex, entry.size)
+          batch.count += 1
+          entry.payload.release()
+        }
+        sendDirect(batch, player)
+      } else {
+        for (entry <- entries)
+          sendPayload(player, entry.payload)
+      }
+    }
+
+    /**
+     * The messages waiting to be sent to one player.
+     */
+    private class Queue {
+      private var entries = ArrayBuffer.empty[Entry]
+      private val coalesced = mutable.HashMap.empty[(Class[_], AnyRef), Entry]
+
+      def isEmpty: Boolean = entries.isEmpty
+
+      def add(entry: Entry): Unit = {
+        if (entry.key != null) {
+          val id = (entry.clazz, entry.key)
+          coalesced.get(id) match {
+            case Some(previous) =>
+              previous.replace(entry)
+              return
+            case None =>
+              coalesced(id) = entry
+          }
+        }
+        entries += entry
+      }
+
+      /**
+       * Remove the entries to send this tick from the queue.
+       * Without a budget, all entries are sent in the order they were queued. Otherwise critical entries are always
+       * sent, the others by priority as long as they fit into the budget. The first non-critical entry is sent even if
+       * it does not fit, so messages larger than the budget still get through.
+       *
+       * @param budget the number of bytes that may be sent, 0 or less for no limit
+       * @return the entries to send
+       */
+      def take(budget: Int): Seq[Entry] = {
+        if (budget <= 0) {
+          val result = entries
+          entries = ArrayBuffer.empty[Entry]
+          coalesced.clear()
+          return result
+        }
+        val result = ListBuffer.empty[Entry]
+        val kept = ArrayBuffer.empty[Entry]
+        var used = 0
+        var sentNonCritical = false
+        for (priority <- MessagePriority.values; entry <- entries if entry.priority == priority) {
+          if (priority == MessagePriority.Critical || !sentNonCritical || used + entry.size <= budget) {
+            result += entry
+            used += entry.size
+            sentNonCritical ||= priority != MessagePriority.Critical
+          } else if (priority == MessagePriority.Low && entry.delay >= MaxLowPriorityDelay) {
+            entry.payload.release()
+          } else {
+            entry.delay += 1
+            kept += entry
+          }
+        }
+        entries = kept
+        coalesced.clear()
+        for (entry <- kept if entry.key != null)
+          coalesced((entry.clazz, entry.key)) = entry
+        result
+      }
+
+      def discard(): Unit = {
+        for (entry <- entries)
+          entry.payload.release()
+        entries.clear()
+        coalesced.clear()
+      }
+    }
+
+    private class Entry(val clazz: Class[_], val key: AnyRef, var priority: MessagePriority, var payload: ByteBuf) {
+      var delay = 0
+
+      def size: Int = payload.readableBytes
+
+      /**
+       * Take over the payload and priority of a newer message with the same key, keeping this entry's position.
+       */
+      def replace(newer: Entry): Unit = {
+        payload.release()
+        payload = newer.payload
+        priority = newer.priority
+        delay = 0
+      }
+    }
+  }
+
   class PartialFunctionChannelHandler(side: Side) extends SimpleChannelInboundHandler[Message](classOf[Message]) {
-    private val handlers = ListBuffer.empty[NetReaction]
+    private val reactions = ListBuffer.empty[Reaction]
+    private val dispatch = new ConcurrentHashMap[Class[_], Array[Reaction]]
+    private val scheduled = new ConcurrentLinkedQueue[Scheduled]
+    FMLCommonHandler.instance().bus().register(this)
+
+    def addReaction(clazz: Class[_], thread: HandlerThread, handler: (Message, Message.Context) => Message): Unit = {
+      reactions.synchronized {
+        reactions += new Reaction(clazz, thread, handler)
+        dispatch.clear()
+      }
+    }
+
+    /**
+     * @return the reactions for a message class, in the order they were added
+     */
+    private def reactionsFor(clazz: Class[_]): Array[Reaction] = {
+      val cached = dispatch.get(clazz)
+      if (cached != null)
+        return cached
+      reactions.synchronized {
+        val result = reactions.filter(_.clazz.isAssignableFrom(clazz)).toArray
+        dispatch.put(clazz, result)
+        result
+      }
+    }
 
-    def addReaction(reaction: NetReaction): Unit = {
-      handlers += reaction
+    override def channelRead0(ctx: ChannelHandlerContext, msg: Message): Unit = msg match {
+      case batch: BatchMessage =>
+        val payload = batch.payload
+        try {
+          for (_ <- 0 until batch.count) {
+            val entry = payload.readSlice(WireFormat.readVarInt(payload))
+            val message = types(entry.readByte()).newInstance()
+            Message.read(message, entry, compact, side)
+            handle(ctx, message)
+          }
+        } finally {
+          payload.release()
+        }
+      case _ =>
+        handle(ctx, msg)
     }
 
-    override def channelRead0(ctx: ChannelHandlerContext, msg: Message): Unit = {
+    /**
+     * Run all reactions for a message. At most one reply is sent per message, the one of the last reaction that
+     * returned a reply. If any of the reactions run on the main thread, the reply is sent once they have run.
+     */
+    private def handle(ctx: ChannelHandlerContext, msg: Message): Unit = {
       val iNetHandler: INetHandler = ctx.attr(NetworkRegistry.NET_HANDLER).get
       val context: Message.Context = new Message.Context(iNetHandler, side)
-      val param = (msg, context)
-      var result: Message = null
-      Breaks.breakable {
-        for (handler <- handlers) {
-          if (handler.isDefinedAt(param)) {
-            result = handler(param)
+      val targets = reactionsFor(msg.getClass)
+      var reply: Message = null
+      var replyIndex = -1
+      var deferred = false
+      var i = 0
+      while (i < targets.length) {
+        val reaction = targets(i)
+        if (reaction.thread == HandlerThread.Main)
+          deferred = true
+        else {
+          val result = run(reaction, msg, context)
+          if (result != null) {
+            reply = result
+            replyIndex = i
           }
         }
+        i += 1
       }
-      if (result != null) {
-        ctx.writeAndFlush(result).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
+      if (deferred)
+        scheduled.offer(new Scheduled(targets, msg, context, reply, replyIndex))
+      else if (reply != null)
+        ctx.writeAndFlush(reply).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE)
+    }
+
+    private def run(reaction: Reaction, msg: Message, context: Message.Context): Message = {
+      if (!NetworkMetrics.Enabled)
+        return reaction.handler(msg, context)
+      val start = System.nanoTime()
+      try {
+        reaction.handler(msg, context)
+      } finally {
+        NetworkMetrics.recordHandle(msg.getClass, side, System.nanoTime() - start)
       }
     }
 
+    /**
+     * Run all handlers scheduled for the main thread, replies are sent through the wrapper
+     */
+    private def runScheduled(): Unit = {
+      var next = scheduled.poll()
+      while (next != null) {
+        var reply = next.reply
+        var i = 0
+        while (i < next.reactions.length) {
+          val reaction = next.reactions(i)
+          if (reaction.thread == HandlerThread.Main) {
+            val result = run(reaction, next.message, next.context)
+            if (result != null && i > next.replyIndex)
+              reply = result
+          }
+          i += 1
+        }
+        if (reply != null) {
+          if (side == Side.CLIENT)
+            sendToServer(reply)
+          else
+            sendTo(reply, next.context.serverHandler.playerEntity)
+        }
+        next = scheduled.poll()
+      }
+    }
+
+    @SubscribeEvent
+    def onClientTick(event: TickEvent.ClientTickEvent): Unit = {
+      if (side == Side.CLIENT && event.phase == TickEvent.Phase.START)
+        runScheduled()
+    }
+
+    @SubscribeEvent
+    def onServerTick(event: TickEvent.ServerTickEvent): Unit = {
+      if (side == Side.SERVER && event.phase == TickEvent.Phase.START)
+        runScheduled()
+    }
+
     override def exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
       Log.log(Level.ERROR, "FunctionChannelHandler exception", cause)
       super.exceptionCaught(ctx, cause)
     }
   }
+
+  private class Reaction(val clazz: Class[_], val thread: HandlerThread, val handler: (Message, Message.Context) => Message)
+
+  /**
+   * The main thread reactions of a message waiting to be run.
+   *
+   * @param reactions all reactions for the message, only the main thread ones are run
+   * @param reply the reply of the network thread reactions, if any
+   * @param replyIndex the index of the reaction that returned the reply, -1 if there is none
+   */
+  private class Scheduled(val reactions: Array[Reaction], val message: Message, val context: Message.Context,
+                          val reply: Message, val replyIndex: Int)
 }
@@ -23,9 +23,12 @@
  */
 package de.mineformers.core.network
 
+import java.lang.reflect.Type
 import java.lang.{Boolean => JBoolean, Byte => JByte, Double => JDouble, Float => JFloat, Long => JLong, Short => JShort}
+import java.util.concurrent.ConcurrentHashMap
 
-import de.mineformers.core.network.serializer.TileDescriptionSerializer
+import de.mineformers.core.network.MessagePriority.MessagePriority
+import de.mineformers.core.network.serializer.{CompositeSerializers, TileDescriptionSerializer}
 import de.mineformers.core.tileentity.TileDescription
 import de.mineformers.core.util.Implicits._
 import de.mineformers.core.util.world.BlockPos
@@ -48,44 +51,100 @@ import scala.language.existentials
  * @author PaleoCrafter
  */
 class Message extends IMessage {
-  override def fromBytes(buf: ByteBuf): Unit = {
-    for (field <- fields) {
-      val serializer = serializers.get(field.getName).orNull
-      if (serializer != null) {
-        field.set(this, serializer.deserialize(buf))
-      }
-    }
+  @transient private var priorityOverride: MessagePriority = null
+
+  /**
+   * @return the priority this message is sent with on channels with a bandwidth budget
+   */
+  final def priority: MessagePriority = if (priorityOverride != null) priorityOverride else defaultPriority
+
+  /**
+   * Override to declare the priority of all messages of a class.
+   *
+   * @return the priority used unless a send overrides it through [[withPriority]]
+   */
+  protected def defaultPriority: MessagePriority = MessagePriority.Normal
+
+  /**
+   * Send this message with a different priority than the one its class declares. Call before sending it.
+   *
+   * @param priority the priority to send the message with
+   * @return this message
+   */
+  def withPriority(priority: MessagePriority): this.type = {
+    priorityOverride = priority
+    this
   }
 
-  override def toBytes(buf: ByteBuf): Unit = {
-    for (field <- fields) {
-      val serializer = serializers.get(field.getName).orNull
-      if (serializer != null) {
-        serializer.serialize(field.get(this), buf)
-      }
+  /**
+   * On channels that queue messages (batching or a bandwidth budget), messages queued for the same player with the
+   * same class and an equal, non-null key replace each other and only the most recent one is sent. Useful for state
+   * updates where only the latest value matters.
+   *
+   * @return the key to coalesce this message by, null if it should never be coalesced
+   */
+  def coalescingKey: AnyRef = null
+
+  // called outside of channels, where the side is unknown, so they are not recorded in the metrics
+  override def fromBytes(buf: ByteBuf): Unit = MessageCodec.of(getClass).read(this, buf)
+
+  override def toBytes(buf: ByteBuf): Unit = MessageCodec.of(getClass).write(this, buf)
+
+  private[network] def decode(buf: ByteBuf, compact: Boolean, side: Side): Unit = {
+    if (!NetworkMetrics.Enabled) {
+      MessageCodec.of(getClass, compact).read(this, buf)
+      return
     }
+    val start = System.nanoTime()
+    val index = buf.readerIndex
+    MessageCodec.of(getClass, compact).read(this, buf)
+    NetworkMetrics.recordDeserialize(getClass, side, System.nanoTime() - start, buf.readerIndex - index)
   }
 
-  def serializers = {
-    if (_serializers == null) {
-      val fields = this.getClass.getDeclaredFields.sortBy(_.getName)
-      _serializers = HashMap.empty[String, Message.Serializer[Any]]
-      for (field <- fields) {
-        field.setAccessible(true)
-        val serializer = Message.getSerializer(field.getType)
-        _serializers += field.getName -> serializer.orNull.asInstanceOf[Message.Serializer[Any]]
-      }
+  private[network] def encode(buf: ByteBuf, compact: Boolean, side: Side): Unit = {
+    if (!NetworkMetrics.Enabled) {
+      MessageCodec.of(getClass, compact).write(this, buf)
+      return
     }
-    _serializers
+    val start = System.nanoTime()
+    val index = buf.writerIndex
+    MessageCodec.of(getClass, compact).write(this, buf)
+    NetworkMetrics.recordSerialize(getClass, side, System.nanoTime() - start, buf.writerIndex - index)
   }
-
-  val fields = this.getClass.getDeclaredFields.sortBy(_.getName)
-  var _serializers: Map[String, Message.Serializer[Any]] = null
 }
 
 object Message {
   type NetReaction = PartialFunction[(Message, Message.Context), Message]
+
+  /**
+   * Write a message in the wire format of a channel. Messages with their own `toBytes` are always written by it,
+   * classes annotated with [[Compact]] use the compact format on every channel.
+   * @param message the message to write
+   * @param buf the buffer to write to
+   * @param compact true, if the channel uses the compact wire format
+   * @param side the side the message is written on
+   */
+  def write(message: IMessage, buf: ByteBuf, compact: Boolean, side: Side): Unit = message match {
+    case m: Message if !MessageCodec.hasCustomFormat(m.getClass) =>
+      m.encode(buf, compact || MessageCodec.isCompact(m.getClass), side)
+    case _ => message.toBytes(buf)
+  }
+
+  /**
+   * Read a message in the wire format of a channel, the counterpart of [[write]]
+   * @param message the message to read into
+   * @param buf the buffer to read from
+   * @param compact true, if the channel uses the compact wire format
+   * @param side the side the message is read on
+   */
+  def read(message: IMessage, buf: ByteBuf, compact: Boolean, side: Side): Unit = message match {
+    case m: Message if !MessageCodec.hasCustomFormat(m.getClass) =>
+      m.decode(buf, compact || MessageCodec.isCompact(m.getClass), side)
+    case _ => message.fromBytes(buf)
+  }
+
   private var serializers = HashMap.empty[Class[_], Serializer[Any]]
+  private val resolved = new ConcurrentHashMap[Type, Option[Serializer[Any]]]
   addSerializer(classOf[String], new Serializer[String] {
     override def serialize0(target: String, buffer: ByteBuf): Unit = ByteBufUtils.writeUTF8String(buffer, target)
 
@@ -96,6 +155,10 @@ object Message {
     override def serialize0(target: Integer, buffer: ByteBuf): Unit = buffer.writeInt(target)
 
     override def deserialize0(buffer: ByteBuf): Integer = buffer.readInt()
+
+    override def serializeCompact(target: Integer, buffer: ByteBuf): Unit = WireFormat.writeVarInt(buffer, target)
+
+    override def deserializeCompact(buffer: ByteBuf): Integer = WireFormat.readVarInt(buffer)
   })
 
   addSerializer(JByte.TYPE, new Serializer[JByte] {
@@ -114,6 +177,10 @@ object Message {
     override def serialize0(target: JLong, buffer: ByteBuf): Unit = buffer.writeLong(target)
 
     override def deserialize0(buffer: ByteBuf): JLong = buffer.readLong()
+
+    override def serializeCompact(target: JLong, buffer: ByteBuf): Unit = WireFormat.writeVarLong(buffer, target)
+
+    override def deserializeCompact(buffer: ByteBuf): JLong = WireFormat.readVarLong(buffer)
   })
 
   addSerializer(Character.TYPE, new Serializer[Character] {
@@ -156,6 +223,10 @@ object Message {
     override def serialize0(target: EnumFacing, buffer: ByteBuf): Unit = buffer.writeInt(target.ordinal())
 
     override def deserialize0(buffer: ByteBuf): EnumFacing = EnumFacing.values()(buffer.readInt())
+
+    override def serializeCompact(target: EnumFacing, buffer: ByteBuf): Unit = buffer.writeByte(target.ordinal())
+
+    override def deserializeCompact(buffer: ByteBuf): EnumFacing = EnumFacing.values()(buffer.readUnsignedByte())
   })
 
   addSerializer(classOf[BlockPos], new Serializer[BlockPos] {
@@ -166,6 +237,14 @@ object Message {
     }
 
     override def deserialize0(buffer: ByteBuf): BlockPos = BlockPos(buffer.readInt(), buffer.readInt(), buffer.readInt())
+
+    override def serializeCompact(target: BlockPos, buffer: ByteBuf): Unit =
+      buffer.writeLong(WireFormat.packPos(target.x, target.y, target.z))
+
+    override def deserializeCompact(buffer: ByteBuf): BlockPos = {
+      val packed = buffer.readLong()
+      BlockPos(WireFormat.unpackX(packed), WireFormat.unpackY(packed), WireFormat.unpackZ(packed))
+    }
   })
 
   addSerializer(classOf[VBlockPos], new Serializer[VBlockPos] {
@@ -176,10 +255,28 @@ object Message {
     }
 
     override def deserialize0(buffer: ByteBuf): VBlockPos = new VBlockPos(buffer.readInt(), buffer.readInt(), buffer.readInt())
+
+    override def serializeCompact(target: VBlockPos, buffer: ByteBuf): Unit =
+      buffer.writeLong(WireFormat.packPos(target.getX, target.getY, target.getZ))
+
+    override def deserializeCompact(buffer: ByteBuf): VBlockPos = {
+      val packed = buffer.readLong()
+      new VBlockPos(WireFormat.unpackX(packed), WireFormat.unpackY(packed), WireFormat.unpackZ(packed))
+    }
   })
 
   addSerializer(classOf[TileDescription], new TileDescriptionSerializer)
 
+  /**
+   * The serializers registered by MFCore itself, generated codecs inline these for primitives
+   */
+  private val builtins = serializers
+
+  /**
+   * @return true, if the given serializer is the one MFCore registered for the class
+   */
+  def isBuiltin(clazz: Class[_], serializer: Serializer[_]): Boolean = builtins.get(clazz).exists(_ eq serializer)
+
   def serialize[A](target: A, buffer: ByteBuf): Boolean = {
     getSerializer[A](target.getClass.asInstanceOf[Class[A]]) match {
       case Some(s) =>
@@ -192,16 +289,42 @@ object Message {
 
   def addSerializer[A](clazz: Class[A], serializer: Serializer[A]): Unit = {
     serializers += clazz -> serializer.asInstanceOf[Serializer[Any]]
+    resolved.clear()
+  }
+
+  def getSerializer[A](clazz: Class[A]): Option[Serializer[A]] = getSerializer(clazz: Type).asInstanceOf[Option[Serializer[A]]]
+
+  /**
+   * Get the serializer for a possibly generic type, e.g. the generic type of a field.
+   * Every lookup is cached, including those that found no serializer. Lookups of unsupported generic types fail
+   * with an exception and are not cached, see [[CompositeSerializers.create]].
+   *
+   * @param tpe the type to look up
+   * @return the serializer for the type, if there is one
+   */
+  def getSerializer(tpe: Type): Option[Serializer[Any]] = {
+    val cached = resolved.get(tpe)
+    if (cached != null)
+      return cached
+    val result = resolve(tpe)
+    val previous = resolved.putIfAbsent(tpe, result)
+    if (previous != null) previous else result
   }
 
-  def getSerializer[A](clazz: Class[A]): Option[Serializer[A]] = serializers.get(clazz).asInstanceOf[Option[Serializer[A]]] match {
-    case s: Some[Serializer[A]] => s
-    case None => serializers find {
+  /**
+   * Resolution order: exact class, registered subclass, composite types (arrays, collections, options, case classes)
+   */
+  private def resolve(tpe: Type): Option[Serializer[Any]] = {
+    val clazz = CompositeSerializers.rawClass(tpe)
+    if (clazz == null || clazz == classOf[AnyRef])
+      return None
+    val registered = serializers.get(clazz) orElse (serializers find {
       e =>
         clazz.isAssignableFrom(e._1)
     } map {
-      _._2.asInstanceOf[Serializer[A]]
-    }
+      _._2
+    })
+    registered orElse CompositeSerializers.create(tpe, t => getSerializer(t)).map(_.asInstanceOf[Serializer[Any]])
   }
 
   class Context(netHandler: INetHandler, val side: Side) {
@@ -223,6 +346,17 @@ object Message {
       else deserialize0(buffer)
     }
 
+    /**
+     * Write a non-null value in the compact wire format, nullness is recorded in the message's null bitmask.
+     * Defaults to the regular encoding.
+     */
+    def serializeCompact(target: T, buffer: ByteBuf): Unit = serialize0(target, buffer)
+
+    /**
+     * Read a value written by [[serializeCompact]]
+     */
+    def deserializeCompact(buffer: ByteBuf): T = deserialize0(buffer)
+
     protected def serialize0(target: T, buffer: ByteBuf)
 
     protected def deserialize0(buffer: ByteBuf): T
@@ -0,0 +1,390 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.network
+
+import java.lang.reflect.{Field, Modifier, Method => JMethod}
+import java.lang.{Boolean => JBoolean}
+import java.util.concurrent.atomic.AtomicInteger
+
+import de.mineformers.core.asm.util.Hierarchy.{Field => FieldDef, Method}
+import de.mineformers.core.asm.util.Instruction
+import de.mineformers.core.asm.util.Instruction._
+import de.mineformers.core.network.Message.Serializer
+import de.mineformers.core.util.{ASMUtils, Log}
+import io.netty.buffer.ByteBuf
+import org.objectweb.asm.Opcodes._
+import org.objectweb.asm.tree.{AbstractInsnNode, ClassNode}
+import org.objectweb.asm.{ClassWriter, Type}
+
+import scala.collection.mutable
+
+/**
+ * MessageCodec
+ *
+ * Reads and writes the fields of one [[Message]] class. Codecs are generated at runtime and access public fields
+ * directly, other fields through their Scala accessors. Primitives using the built-in serializers are written straight
+ * to the buffer without boxing.
+ *
+ * @author PaleoCrafter
+ */
+abstract class MessageCodec {
+  /**
+   * Write all serializable fields of the given message
+   * @param message the message to write
+   * @param buf the buffer to write to
+   */
+  def write(message: Message, buf: ByteBuf): Unit
+
+  /**
+   * Read all serializable fields into the given message
+   * @param message the message to read into
+   * @param buf the buffer to read from
+   */
+  def read(message: Message, buf: ByteBuf): Unit
+}
+
+/**
+ * ReflectiveCodec
+ *
+ * Fallback for message classes whose fields are not accessible from generated code.
+ *
+ * @author PaleoCrafter
+ */
+final class ReflectiveCodec(layout: Array[(Field, Serializer[Any])], compact: Boolean) extends MessageCodec {
+  private val nullable = layout.count(!_._1.getType.isPrimitive)
+  for ((field, _) <- layout)
+    field.setAccessible(true)
+
+  override def write(message: Message, buf: ByteBuf): Unit = {
+    if (compact) {
+      var mask = 0
+      var bit = 0
+      var i = 0
+      while (i < layout.length) {
+        val field = layout(i)._1
+        if (!field.getType.isPrimitive) {
+          if (field.get(message) != null)
+            mask |= 1 << (bit & 7)
+          bit += 1
+          if ((bit & 7) == 0) {
+            buf.writeByte(mask)
+            mask = 0
+          }
+        }
+        i += 1
+      }
+      if ((bit & 7) != 0)
+        buf.writeByte(mask)
+    }
+    var i = 0
+    while (i < layout.length) {
+      val (field, serializer) = layout(i)
+      if (compact) {
+        val value = field.get(message)
+        if (value != null)
+          serializer.serializeCompact(value, buf)
+      } else
+        serializer.serialize(field.get(message), buf)
+      i += 1
+    }
+  }
+
+  override def read(message: Message, buf: ByteBuf): Unit = {
+    val masks = if (compact) new Array[Byte]((nullable + 7) / 8) else null
+    if (compact)
+      buf.readBytes(masks)
+    var bit = 0
+    var i = 0
+    while (i < layout.length) {
+      val (field, serializer) = layout(i)
+      if (!compact)
+        field.set(message, serializer.deserialize(buf))
+      else if (field.getType.isPrimitive)
+        field.set(message, serializer.deserializeCompact(buf))
+      else {
+        val present = (masks(bit >> 3) & (1 << (bit & 7))) != 0
+        field.set(message, if (present) serializer.deserializeCompact(buf) else null)
+        bit += 1
+      }
+      i += 1
+    }
+  }
+}
+
+object MessageCodec {
+  private val codecs = new ClassValue[MessageCodec] {
+    override def computeValue(clazz: Class[_]): MessageCodec = create(clazz, compact = false)
+  }
+  private val compactCodecs = new ClassValue[MessageCodec] {
+    override def computeValue(clazz: Class[_]): MessageCodec = create(clazz, compact = true)
+  }
+  private val customFormats = new ClassValue[JBoolean] {
+    override def computeValue(clazz: Class[_]): JBoolean =
+      clazz.getMethod("toBytes", classOf[ByteBuf]).getDeclaringClass != classOf[Message] ||
+        clazz.getMethod("fromBytes", classOf[ByteBuf]).getDeclaringClass != classOf[Message]
+  }
+  private val loaders = mutable.WeakHashMap.empty[ClassLoader, CodecClassLoader]
+  private val counter = new AtomicInteger
+  private final val ByteBufName = Type.getInternalName(classOf[ByteBuf])
+  private final val CodecName = Type.getInternalName(classOf[MessageCodec])
+  private final val SerializerName = Type.getInternalName(classOf[Serializer[_]])
+  private final val WireFormatName = Type.getInternalName(WireFormat.getClass).stripSuffix("$")
+  private final val SerializersDesc = "[L" + SerializerName + ";"
+  private final val WriteDesc = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(classOf[Message]), Type.getType(classOf[ByteBuf]))
+  private final val SerializeDesc = "(Ljava/lang/Object;L" + ByteBufName + ";)V"
+  private final val DeserializeDesc = "(L" + ByteBufName + ";)Ljava/lang/Object;"
+
+  /**
+   * Get the codec for a message class in its default format, generating it on first use
+   * @param clazz the message class
+   * @return the codec
+   */
+  def of(clazz: Class[_]): MessageCodec = of(clazz, isCompact(clazz))
+
+  /**
+   * Get the codec for a message class, generating it on first use. Channels pass their own format, so one class can
+   * be sent through channels with different formats.
+   * @param clazz the message class
+   * @param compact true for the compact wire format
+   * @return the codec
+   */
+  def of(clazz: Class[_], compact: Boolean): MessageCodec = if (compact) compactCodecs.get(clazz) else codecs.get(clazz)
+
+  /**
+   * @return true, if the message class overrides `toBytes` or `fromBytes` and isn't written by a codec
+   */
+  def hasCustomFormat(clazz: Class[_]): Boolean = customFormats.get(clazz)
+
+  /**
+   * @return true, if messages of the given class are written in the compact wire format outside of channels that
+   *         decide it themselves, i.e. if it is annotated with [[Compact]]
+   */
+  def isCompact(clazz: Class[_]): Boolean = clazz.isAnnotationPresent(classOf[Compact])
+
+  /**
+   * Collect the serializable fields of a message class: all declared instance fields with a serializer, sorted by name.
+   * Transient and synthetic fields are skipped.
+   * @param clazz the message class
+   * @return the fields and their serializers, in wire order
+   */
+  def layout(clazz: Class[_]): Array[(Field, Serializer[Any])] =
+    clazz.getDeclaredFields.filter(f => (f.getModifiers & (Modifier.STATIC | Modifier.TRANSIENT)) == 0 && !f.isSynthetic)
+      .sortBy(_.getName) flatMap {
+      f => Message.getSerializer(f.getGenericType).map(s => (f, s.asInstanceOf[Serializer[Any]]))
+    }
+
+  private def create(clazz: Class[_], compact: Boolean): MessageCodec = {
+    val layout = this.layout(clazz)
+    if (Modifier.isPublic(clazz.getModifiers) && layout.forall(e => isDirect(e._1) || accessors(clazz, e._1).isDefined)) {
+      try {
+        return generate(clazz, layout, compact)
+      } catch {
+        case e: Exception =>
+          Log.warn("Failed to generate codec for " + clazz.getName + ", falling back to reflection", e)
+      }
+    }
+    new ReflectiveCodec(layout, compact)
+  }
+
+  private def generate(clazz: Class[_], layout: Array[(Field, Serializer[Any])], compact: Boolean): MessageCodec = {
+    val owner = Type.getInternalName(clazz)
+    val name = "de/mineformers/core/network/codec/" + clazz.getSimpleName + "Codec$" + counter.incrementAndGet()
+    val node = new ClassNode()
+    node.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, CodecName, null)
+    node.fields.add(FieldDef(ACC_PRIVATE | ACC_FINAL, "serializers", SerializersDesc).asm)
+
+    val init = Method(ACC_PUBLIC, "<init>", "(" + SerializersDesc + ")V")
+    init.instructions ++= Seq(Var(ALOAD, 0), MethodOp(INVOKESPECIAL, CodecName, "<init>", "()V"),
+      Var(ALOAD, 0), Var(ALOAD, 1), FieldOp(PUTFIELD, name, "serializers", SerializersDesc), Simple(RETURN))
+
+    val write = Method(ACC_PUBLIC, "write", WriteDesc)
+    val read = Method(ACC_PUBLIC, "read", WriteDesc)
+    for (m <- Seq(write, read))
+      m.instructions ++= Seq(Var(ALOAD, 1), TypeOp(CHECKCAST, owner), Var(ASTORE, 3))
+    def getField(field: Field) = {
+      val desc = Type.getDescriptor(field.getType)
+      Seq(Var(ALOAD, 3),
+        if (isDirect(field)) FieldOp(GETFIELD, owner, field.getName, desc)
+        else MethodOp(INVOKEVIRTUAL, owner, field.getName, "()" + desc))
+    }
+    def putField(field: Field) = {
+      val desc = Type.getDescriptor(field.getType)
+      if (isDirect(field)) FieldOp(PUTFIELD, owner, field.getName, desc)
+      else MethodOp(INVOKEVIRTUAL, owner, field.getName + "_$eq", "(" + desc + ")V")
+    }
+    def serializer(i: Int) = Seq(Var(ALOAD, 0), FieldOp(GETFIELD, name, "serializers", SerializersDesc), push(i), Simple(AALOAD))
+
+    // In the compact format, the nullness of all reference fields is written up front, one bit each, and the masks are
+    // kept in locals 4 and up while reading
+    val nullable = layout.indices.filter(i => !layout(i)._1.getType.isPrimitive)
+    if (compact) {
+      for ((group, g) <- nullable.grouped(8).zipWithIndex) {
+        write.instructions ++= Seq(Var(ALOAD, 2), Simple(ICONST_0))
+        for ((i, bit) <- group.zipWithIndex) {
+          val skip = LabelOp()
+          write.instructions ++= getField(layout(i)._1)
+          write.instructions ++= Seq(Jump(IFNULL, skip), push(1 << bit), Simple(IOR), skip)
+        }
+        write.instructions ++= Seq(MethodOp(INVOKEVIRTUAL, ByteBufName, "writeByte", "(I)L" + ByteBufName + ";"), Simple(POP))
+        read.instructions ++= Seq(Var(ALOAD, 2), MethodOp(INVOKEVIRTUAL, ByteBufName, "readByte", "()B"), Var(ISTORE, 4 + g))
+      }
+    }
+
+    val (serialize, deserialize) = if (compact) ("serializeCompact", "deserializeCompact") else ("serialize", "deserialize")
+    for (i <- layout.indices) {
+      val (field, fieldSerializer) = layout(i)
+      val desc = Type.getDescriptor(field.getType)
+      val inline = (if (compact) CompactPrimitives else Primitives).get(desc).filter(_ => Message.isBuiltin(field.getType, fieldSerializer))
+      inline match {
+        case Some(primitive) =>
+          if (!compact) {
+            write.instructions ++= Seq(Var(ALOAD, 2), Simple(ICONST_1), MethodOp(INVOKEVIRTUAL, ByteBufName, "writeByte", "(I)L" + ByteBufName + ";"), Simple(POP))
+            read.instructions ++= Seq(Var(ALOAD, 2), MethodOp(INVOKEVIRTUAL, ByteBufName, "readByte", "()B"), Simple(POP))
+          }
+          write.instructions += Var(ALOAD, 2)
+          write.instructions ++= getField(field)
+          write.instructions ++= primitive.write
+          read.instructions ++= Seq(Var(ALOAD, 3), Var(ALOAD, 2))
+          read.instructions ++= primitive.read
+          read.instructions += putField(field)
+        case None =>
+          val slot = nullable.indexOf(i)
+          val skip = LabelOp()
+          val end = LabelOp()
+          if (compact && slot >= 0) {
+            write.instructions ++= getField(field)
+            write.instructions += Jump(IFNULL, skip)
+            read.instructions ++= Seq(Var(ILOAD, 4 + slot / 8), push(1 << (slot % 8)), Simple(IAND), Jump(IFEQ, skip))
+          }
+          write.instructions ++= serializer(i)
+          write.instructions ++= getField(field)
+          write.instructions ++= ASMUtils.box(desc, cast = false)
+          write.instructions ++= Seq(Var(ALOAD, 2), MethodOp(INVOKEINTERFACE, SerializerName, serialize, SerializeDesc))
+          read.instructions += Var(ALOAD, 3)
+          read.instructions ++= serializer(i)
+          read.instructions ++= Seq(Var(ALOAD, 2), MethodOp(INVOKEINTERFACE, SerializerName, deserialize, DeserializeDesc))
+          ASMUtils.box(desc) match {
+            case Some(cast: TypeOp) =>
+              read.instructions += cast
+              read.instructions ++= ASMUtils.unboxingNode(cast.desc)
+            case _ =>
+              read.instructions += TypeOp(CHECKCAST, Type.getType(field.getType).getInternalName)
+          }
+          read.instructions += putField(field)
+          if (compact && slot >= 0) {
+            write.instructions += skip
+            read.instructions ++= Seq(Jump(GOTO, end), skip, Var(ALOAD, 3), Simple(ACONST_NULL), putField(field), end)
+          }
+      }
+    }
+    for (m <- Seq(write, read))
+      m.instructions += Simple(RETURN)
+    for (m <- Seq(init, write, read))
+      node.methods.add(m.asm)
+
+    val cw = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+    node.accept(cw)
+    val codecClass = loaderFor(clazz.getClassLoader).define(name.replace('/', '.'), cw.toByteArray)
+    codecClass.getConstructor(classOf[Array[Serializer[_]]]).newInstance(layout.map(_._2).asInstanceOf[Array[Serializer[_]]]).asInstanceOf[MessageCodec]
+  }
+
+  /**
+   * @return true, if generated code can read and write the field itself
+   */
+  private def isDirect(field: Field): Boolean = Modifier.isPublic(field.getModifiers) && !Modifier.isFinal(field.getModifiers)
+
+  /**
+   * Find the public getter and setter Scala generates for a `var`, e.g. `name()` and `name_=(value)`
+   * @return the accessors, if the class has both
+   */
+  private def accessors(clazz: Class[_], field: Field): Option[(JMethod, JMethod)] = {
+    try {
+      val getter = clazz.getMethod(field.getName)
+      val setter = clazz.getMethod(field.getName + "_$eq", field.getType)
+      if (getter.getReturnType == field.getType && setter.getReturnType == Void.TYPE) Some(getter -> setter) else None
+    } catch {
+      case e: NoSuchMethodException => None
+    }
+  }
+
+  private def push(i: Int): Instruction[AbstractInsnNode] =
+    if (i <= 5) Simple(ICONST_0 + i)
+    else if (i <= Byte.MaxValue) IntOp(BIPUSH, i)
+    else IntOp(SIPUSH, i)
+
+  /**
+   * A primitive written straight to the buffer, either by a method on [[ByteBuf]] or a static helper in [[WireFormat]].
+   * Instructions are created anew on every access, as nodes can only be part of one method.
+   */
+  private case class Primitive(owner: String, writeName: String, writeDesc: String, readName: String, readDesc: String) {
+    private val static = owner != ByteBufName
+
+    /**
+     * Expects the buffer and the value on the stack
+     */
+    def write: Seq[Instruction[AbstractInsnNode]] =
+      if (static) Seq(MethodOp(INVOKESTATIC, owner, writeName, writeDesc))
+      else Seq(MethodOp(INVOKEVIRTUAL, owner, writeName, writeDesc), Simple(POP))
+
+    /**
+     * Expects the buffer on the stack, leaves the value
+     */
+    def read: Seq[Instruction[AbstractInsnNode]] = Seq(MethodOp(if (static) INVOKESTATIC else INVOKEVIRTUAL, owner, readName, readDesc))
+  }
+
+  /**
+   * Descriptor -> encoding on [[ByteBuf]] for every primitive with a built-in serializer
+   */
+  private val Primitives = {
+    val buf = "L" + ByteBufName + ";"
+    Map(
+      "Z" -> Primitive(ByteBufName, "writeBoolean", "(Z)" + buf, "readBoolean", "()Z"),
+      "B" -> Primitive(ByteBufName, "writeByte", "(I)" + buf, "readByte", "()B"),
+      "S" -> Primitive(ByteBufName, "writeShort", "(I)" + buf, "readShort", "()S"),
+      "C" -> Primitive(ByteBufName, "writeChar", "(I)" + buf, "readChar", "()C"),
+      "I" -> Primitive(ByteBufName, "writeInt", "(I)" + buf, "readInt", "()I"),
+      "J" -> Primitive(ByteBufName, "writeLong", "(J)" + buf, "readLong", "()J"),
+      "F" -> Primitive(ByteBufName, "writeFloat", "(F)" + buf, "readFloat", "()F"),
+      "D" -> Primitive(ByteBufName, "writeDouble", "(D)" + buf, "readDouble", "()D"))
+  }
+
+  /**
+   * Same as [[Primitives]], but ints and longs are written as ZigZag VarInts
+   */
+  private val CompactPrimitives = {
+    val buf = "L" + ByteBufName + ";"
+    Primitives ++ Map(
+      "I" -> Primitive(WireFormatName, "writeVarInt", "(" + buf + "I)V", "readVarInt", "(" + buf + ")I"),
+      "J" -> Primitive(WireFormatName, "writeVarLong", "(" + buf + "J)V", "readVarLong", "(" + buf + ")J"))
+  }
+
+  private def loaderFor(parent: ClassLoader): CodecClassLoader = loaders.synchronized {
+    loaders.getOrElseUpdate(parent, new CodecClassLoader(parent))
+  }
+
+  private class CodecClassLoader(parent: ClassLoader) extends ClassLoader(parent) {
+    def define(name: String, bytes: Array[Byte]): Class[_] = defineClass(name, bytes, 0, bytes.length)
+  }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import java.util.zip.{DataFormatException, Deflater, Inflater}
+
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.ChannelHandlerContext
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage
+import net.minecraftforge.fml.relauncher.Side
+
+/**
+ * CompressingCodec
+ *
+ * Channel codec which deflates message payloads of at least `threshold` bytes.
+ *
+ * @author PaleoCrafter
+ */
+class CompressingCodec(threshold: Int, compact: Boolean) extends ChannelCodec(compact) {
+  override def encodeInto(ctx: ChannelHandlerContext, msg: IMessage, target: ByteBuf): Unit =
+    MessageCompression.write(msg, target, threshold, compact, side(ctx))
+
+  override def decodeInto(ctx: ChannelHandlerContext, source: ByteBuf, msg: IMessage): Unit =
+    MessageCompression.read(msg, source, compact, side(ctx))
+}
+
+/**
+ * MessageCompression
+ *
+ * Every payload starts with a flag byte: 0 for raw data, 1 for data compressed with [[Deflater]], preceded by the
+ * uncompressed length. Deflaters, inflaters and scratch buffers are kept per thread.
+ *
+ * @author PaleoCrafter
+ */
+object MessageCompression {
+  final val Raw = 0
+  final val Deflated = 1
+  /**
+   * Upper bound for the uncompressed size of a payload, anything larger is rejected when reading
+   */
+  final val MaxInflatedLength = 16 * 1024 * 1024
+  private val deflaters = new ThreadLocal[Deflater] {
+    override def initialValue(): Deflater = new Deflater()
+  }
+  private val inflaters = new ThreadLocal[Inflater] {
+    override def initialValue(): Inflater = new Inflater()
+  }
+  private val scratch = new ThreadLocal[Array[Byte]] {
+    override def initialValue(): Array[Byte] = new Array[Byte](8192)
+  }
+
+  /**
+   * Write a message, compressing it if its payload has at least the given size
+   * @param message the message to write
+   * @param target the buffer to write to
+   * @param threshold the minimum size for payloads to be compressed
+   * @param compact true, if the channel uses the compact wire format
+   * @param side the side the message is written on
+   */
+  def write(message: IMessage, target: ByteBuf, threshold: Int, compact: Boolean, side: Side): Unit = {
+    val raw = Unpooled.buffer()
+    Message.write(message, raw, compact, side)
+    val length = raw.readableBytes
+    if (length < threshold) {
+      target.writeByte(Raw)
+      target.writeBytes(raw)
+    } else {
+      target.writeByte(Deflated)
+      WireFormat.writeVarInt(target, length)
+      val deflater = deflaters.get()
+      val chunk = scratch.get()
+      deflater.reset()
+      deflater.setInput(raw.array, raw.arrayOffset + raw.readerIndex, length)
+      deflater.finish()
+      while (!deflater.finished) {
+        val n = deflater.deflate(chunk)
+        target.writeBytes(chunk, 0, n)
+      }
+    }
+  }
+
+  /**
+   * Read a message written by [[write]]
+   * @param message the message to read into
+   * @param source the buffer to read from
+   * @param compact true, if the channel uses the compact wire format
+   * @param side the side the message is read on
+   */
+  def read(message: IMessage, source: ByteBuf, compact: Boolean, side: Side): Unit = {
+    if (source.readByte() == Raw) {
+      Message.read(message, source, compact, side)
+      return
+    }
+    val length = WireFormat.readVarInt(source)
+    if (length < 0 || length > MaxInflatedLength)
+      throw new DataFormatException("Invalid uncompressed length " + length)
+    val input = new Array[Byte](source.readableBytes)
+    source.readBytes(input)
+    val inflater = inflaters.get()
+    inflater.reset()
+    inflater.setInput(input)
+    val output = new Array[Byte](length)
+    var offset = 0
+    while (offset < length) {
+      val n = inflater.inflate(output, offset, length - offset)
+      if (n == 0)
+        throw new DataFormatException(if (inflater.needsDictionary) "Compressed payload requires a dictionary"
+                                      else "Truncated compressed payload")
+      offset += n
+    }
+    // the end of the stream is only consumed once the inflater runs out of output space
+    if (!inflater.finished && inflater.inflate(scratch.get(), 0, 1) != 0)
+      throw new DataFormatException("Compressed payload exceeds its declared length")
+    if (!inflater.finished || inflater.getRemaining != 0)
+      throw new DataFormatException("Trailing data after compressed payload")
+    Message.read(message, Unpooled.wrappedBuffer(output), compact, side)
+  }
+}
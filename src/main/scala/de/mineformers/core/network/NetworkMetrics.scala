@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory, TimeUnit}
+
+import de.mineformers.core.util.{LatencyHistogram, Log}
+import net.minecraftforge.fml.relauncher.Side
+
+import scala.collection.JavaConverters._
+
+/**
+ * NetworkMetrics
+ *
+ * Counts, sizes and latencies of messages per message class and side.
+ * Disabled unless launched with -Dmfcore.networkMetrics=true, -Dmfcore.networkMetricsInterval=<seconds> additionally
+ * logs the report periodically.
+ *
+ * @author PaleoCrafter
+ */
+object NetworkMetrics {
+  private final val RowFormat = "%-50s %8s %10s %8s %12s %12s %15s %15s %15s\n"
+  val Enabled = System.getProperty("mfcore.networkMetrics", "false").toBoolean
+  val LogInterval = System.getProperty("mfcore.networkMetricsInterval", "0").toInt
+  private val stats = Side.values.map(_ => new ConcurrentHashMap[Class[_], Stats]())
+
+  if (Enabled && LogInterval > 0) {
+    val executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "MFCore Network Metrics")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+    executor.scheduleAtFixedRate(new Runnable {
+      override def run(): Unit = for (side <- Side.values if !stats(side.ordinal).isEmpty) Log.info(report(side))
+    }, LogInterval, LogInterval, TimeUnit.SECONDS)
+  }
+
+  /**
+   * Statistics of one message class on one side
+   */
+  class Stats(val messageClass: Class[_]) {
+    val sent = new AtomicLong
+    val recipients = new AtomicLong
+    val received = new AtomicLong
+    val bytesOut = new AtomicLong
+    val bytesIn = new AtomicLong
+    val serialize = new LatencyHistogram
+    val deserialize = new LatencyHistogram
+    val handle = new LatencyHistogram
+  }
+
+  /**
+   * @return the statistics of a message class on the given side
+   */
+  def get(clazz: Class[_], side: Side): Stats = {
+    val map = stats(side.ordinal)
+    val existing = map.get(clazz)
+    if (existing != null)
+      return existing
+    val created = new Stats(clazz)
+    val previous = map.putIfAbsent(clazz, created)
+    if (previous != null) previous else created
+  }
+
+  /**
+   * @return the statistics of all message classes seen on the given side
+   */
+  def all(side: Side): Seq[Stats] = stats(side.ordinal).values.asScala.toSeq
+
+  /**
+   * Forget everything collected so far
+   */
+  def reset(): Unit = stats.foreach(_.clear())
+
+  /**
+   * Record a message being serialized on the given side
+   */
+  def recordSerialize(clazz: Class[_], side: Side, nanos: Long, bytes: Int): Unit = {
+    val s = get(clazz, side)
+    s.serialize.record(nanos)
+    s.bytesOut.addAndGet(bytes)
+  }
+
+  /**
+   * Record a message being deserialized on the given side
+   */
+  def recordDeserialize(clazz: Class[_], side: Side, nanos: Long, bytes: Int): Unit = {
+    val s = get(clazz, side)
+    s.received.incrementAndGet()
+    s.deserialize.record(nanos)
+    s.bytesIn.addAndGet(bytes)
+  }
+
+  /**
+   * Record a send call
+   * @param recipients the number of players the message was sent to
+   */
+  def recordSend(clazz: Class[_], side: Side, recipients: Int): Unit = {
+    val s = get(clazz, side)
+    s.sent.incrementAndGet()
+    s.recipients.addAndGet(recipients)
+  }
+
+  def recordHandle(clazz: Class[_], side: Side, nanos: Long): Unit = get(clazz, side).handle.record(nanos)
+
+  /**
+   * @return a table of the statistics on the given side, sorted by the number of bytes written
+   */
+  def report(side: Side): String = {
+    val b = new StringBuilder
+    b ++= "Network report for side " + side + "\n"
+    b ++= RowFormat.format("Message", "Sent", "Recipients", "Received", "Bytes out", "Bytes in",
+      "Serialize us", "Deserialize us", "Handle us")
+    for (s <- all(side).sortBy(-_.bytesOut.get))
+      b ++= RowFormat.format(s.messageClass.getName, s.sent.get, s.recipients.get, s.received.get, s.bytesOut.get,
+        s.bytesIn.get, s.serialize.summary, s.deserialize.summary, s.handle.summary)
+    b.toString()
+  }
+}
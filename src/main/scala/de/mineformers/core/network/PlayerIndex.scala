@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import java.util.UUID
+
+import net.minecraft.entity.player.{EntityPlayer, EntityPlayerMP}
+import net.minecraft.server.MinecraftServer
+import net.minecraft.util.MathHelper
+import net.minecraftforge.common.DimensionManager
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.{PlayerEvent, TickEvent}
+import net.minecraftforge.fml.common.network.NetworkRegistry
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * PlayerIndex
+ *
+ * Buckets the players on the server by dimension and chunk, so range sends only have to look at the players in nearby
+ * chunks. Players are added, replaced and removed as they log in, respawn, change dimension and log out, their chunks
+ * are refreshed at the end of every server tick. Entries are keyed by the player's UUID, so the entity a respawn
+ * replaces never lingers in the index. The index must only be used from the server thread.
+ *
+ * @author PaleoCrafter
+ */
+object PlayerIndex {
+  private val cells = mutable.HashMap.empty[Int, mutable.HashMap[Long, mutable.Set[EntityPlayerMP]]]
+  private val entries = mutable.HashMap.empty[UUID, Entry]
+
+  private def key(chunkX: Int, chunkZ: Int): Long = (chunkX.toLong << 32) | (chunkZ & 0xFFFFFFFFL)
+
+  /**
+   * @return all players within the given range of a point, using the same check as FML's target points
+   */
+  def playersAround(point: NetworkRegistry.TargetPoint): Seq[EntityPlayerMP] = {
+    val dimension = cells.getOrElse(point.dimension, null)
+    if (dimension == null)
+      return Seq.empty
+    val result = mutable.ArrayBuffer.empty[EntityPlayerMP]
+    val rangeSq = point.range * point.range
+    forEachInChunks(dimension, MathHelper.floor_double(point.x - point.range) >> 4, MathHelper.floor_double(point.z - point.range) >> 4,
+      MathHelper.floor_double(point.x + point.range) >> 4, MathHelper.floor_double(point.z + point.range) >> 4) {
+      p =>
+        val (dx, dy, dz) = (point.x - p.posX, point.y - p.posY, point.z - p.posZ)
+        if (dx * dx + dy * dy + dz * dz < rangeSq)
+          result += p
+    }
+    result
+  }
+
+  /**
+   * @return all players which have the given chunk loaded on their client
+   */
+  def playersWatching(dimensionId: Int, chunkX: Int, chunkZ: Int): Seq[EntityPlayerMP] = {
+    val dimension = cells.getOrElse(dimensionId, null)
+    val world = DimensionManager.getWorld(dimensionId)
+    if (dimension == null || world == null)
+      return Seq.empty
+    val manager = world.getPlayerManager
+    val radius = MinecraftServer.getServer.getConfigurationManager.getViewDistance
+    val result = mutable.ArrayBuffer.empty[EntityPlayerMP]
+    forEachInChunks(dimension, chunkX - radius, chunkZ - radius, chunkX + radius, chunkZ + radius) {
+      p =>
+        if (manager.isPlayerWatchingChunk(p, chunkX, chunkZ))
+          result += p
+    }
+    result
+  }
+
+  private def forEachInChunks(dimension: mutable.HashMap[Long, mutable.Set[EntityPlayerMP]], minX: Int, minZ: Int, maxX: Int, maxZ: Int)(f: EntityPlayerMP => Unit): Unit = {
+    // For very large ranges, walking the occupied cells is cheaper than walking every chunk in range
+    if ((maxX - minX + 1).toLong * (maxZ - minZ + 1) > dimension.size) {
+      for ((k, players) <- dimension) {
+        val (x, z) = ((k >> 32).toInt, k.toInt)
+        if (x >= minX && x <= maxX && z >= minZ && z <= maxZ)
+          players foreach f
+      }
+    } else {
+      for (x <- minX to maxX; z <- minZ to maxZ)
+        dimension.get(key(x, z)) match {
+          case Some(players) => players foreach f
+          case None =>
+        }
+    }
+  }
+
+  private def update(player: EntityPlayerMP): Unit = {
+    val dim = player.dimension
+    val k = key(MathHelper.floor_double(player.posX) >> 4, MathHelper.floor_double(player.posZ) >> 4)
+    entries.get(player.getUniqueID) match {
+      case Some(entry) if (entry.player eq player) && entry.dimension == dim && entry.chunk == k =>
+      case _ =>
+        remove(player.getUniqueID)
+        cells.getOrElseUpdate(dim, mutable.HashMap.empty).getOrElseUpdate(k, mutable.LinkedHashSet.empty) += player
+        entries(player.getUniqueID) = new Entry(player, dim, k)
+    }
+  }
+
+  private def remove(id: UUID): Unit = {
+    entries.remove(id) match {
+      case Some(entry) =>
+        val dimension = cells(entry.dimension)
+        val cell = dimension(entry.chunk)
+        cell -= entry.player
+        if (cell.isEmpty)
+          dimension -= entry.chunk
+      case None =>
+    }
+  }
+
+  @SubscribeEvent
+  def onServerTick(event: TickEvent.ServerTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.END)
+      MinecraftServer.getServer.getConfigurationManager.playerEntityList.asInstanceOf[java.util.List[EntityPlayerMP]].asScala foreach update
+  }
+
+  @SubscribeEvent
+  def onPlayerLogin(event: PlayerEvent.PlayerLoggedInEvent): Unit = handle(event.player)
+
+  @SubscribeEvent
+  def onPlayerRespawn(event: PlayerEvent.PlayerRespawnEvent): Unit = handle(event.player)
+
+  @SubscribeEvent
+  def onPlayerChangedDimension(event: PlayerEvent.PlayerChangedDimensionEvent): Unit = handle(event.player)
+
+  @SubscribeEvent
+  def onPlayerLogout(event: PlayerEvent.PlayerLoggedOutEvent): Unit = remove(event.player.getUniqueID)
+
+  private def handle(player: EntityPlayer): Unit = {
+    player match {
+      case p: EntityPlayerMP => update(p)
+      case _ =>
+    }
+  }
+
+  private class Entry(val player: EntityPlayerMP, val dimension: Int, val chunk: Long)
+}
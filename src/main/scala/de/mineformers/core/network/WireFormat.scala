@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * WireFormat
+ *
+ * Primitive encodings used by the compact message format: ZigZag VarInts and block positions packed into a long.
+ *
+ * @author PaleoCrafter
+ */
+object WireFormat {
+  private final val PosXZBits = 26
+  private final val PosYBits = 12
+  private final val PosYShift = PosXZBits
+  private final val PosXShift = PosYShift + PosYBits
+
+  /**
+   * Write an int as ZigZag encoded VarInt, small magnitudes of either sign take a single byte
+   */
+  def writeVarInt(buf: ByteBuf, value: Int): Unit = {
+    var v = (value << 1) ^ (value >> 31)
+    while ((v & ~0x7F) != 0) {
+      buf.writeByte((v & 0x7F) | 0x80)
+      v >>>= 7
+    }
+    buf.writeByte(v)
+  }
+
+  def readVarInt(buf: ByteBuf): Int = {
+    var v = 0
+    var shift = 0
+    var b = 0
+    do {
+      if (shift > 28)
+        throw new IllegalStateException("VarInt too long")
+      b = buf.readByte()
+      v |= (b & 0x7F) << shift
+      shift += 7
+    } while ((b & 0x80) != 0)
+    (v >>> 1) ^ -(v & 1)
+  }
+
+  /**
+   * Write a long as ZigZag encoded VarLong
+   */
+  def writeVarLong(buf: ByteBuf, value: Long): Unit = {
+    var v = (value << 1) ^ (value >> 63)
+    while ((v & ~0x7FL) != 0) {
+      buf.writeByte(((v & 0x7F) | 0x80).toInt)
+      v >>>= 7
+    }
+    buf.writeByte(v.toInt)
+  }
+
+  def readVarLong(buf: ByteBuf): Long = {
+    var v = 0L
+    var shift = 0
+    var b = 0
+    do {
+      if (shift > 63)
+        throw new IllegalStateException("VarLong too long")
+      b = buf.readByte()
+      v |= (b & 0x7FL) << shift
+      shift += 7
+    } while ((b & 0x80) != 0)
+    (v >>> 1) ^ -(v & 1)
+  }
+
+  /**
+   * Pack a block position into a long, using the same layout as vanilla's BlockPos.toLong
+   * (26 bits for x and z, 12 bits for y)
+   */
+  def packPos(x: Int, y: Int, z: Int): Long =
+    ((x & ((1L << PosXZBits) - 1)) << PosXShift) | ((y & ((1L << PosYBits) - 1)) << PosYShift) | (z & ((1L << PosXZBits) - 1))
+
+  def unpackX(packed: Long): Int = (packed << (64 - PosXShift - PosXZBits) >> (64 - PosXZBits)).toInt
+
+  def unpackY(packed: Long): Int = (packed << (64 - PosYShift - PosYBits) >> (64 - PosYBits)).toInt
+
+  def unpackZ(packed: Long): Int = (packed << (64 - PosXZBits) >> (64 - PosXZBits)).toInt
+}
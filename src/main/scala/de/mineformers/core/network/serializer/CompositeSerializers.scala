@@ -0,0 +1,412 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.network.serializer
+
+import java.lang.reflect._
+import java.nio.ByteBuffer
+import java.{util => ju}
+
+import de.mineformers.core.network.Message.Serializer
+import de.mineformers.core.network.WireFormat
+import io.netty.buffer.ByteBuf
+
+import scala.collection.{immutable, mutable}
+
+/**
+ * CompositeSerializers
+ *
+ * Builds serializers for types made up of other serializable types: primitive and object arrays, Scala and Java
+ * collections, maps, options and case classes. Element types are taken from the generic signature, so they must be
+ * reference types (use arrays for primitives). Scala erases primitive element types to Object, e.g. `List[Int]`, such
+ * types are rejected with an exception instead of being treated as unsupported.
+ *
+ * @author PaleoCrafter
+ */
+object CompositeSerializers {
+  type Resolver = Type => Option[Serializer[Any]]
+
+  /**
+   * Scala collection types and how to build them, the first one whose result is assignable to the requested type wins
+   */
+  private val collections = Seq[(Class[_], () => mutable.Builder[Any, AnyRef])](
+    classOf[immutable.List[_]] -> (() => immutable.List.newBuilder[Any]),
+    classOf[immutable.Vector[_]] -> (() => immutable.Vector.newBuilder[Any]),
+    classOf[immutable.Set[_]] -> (() => immutable.Set.newBuilder[Any]),
+    classOf[mutable.ArrayBuffer[_]] -> (() => mutable.ArrayBuffer.newBuilder[Any]),
+    classOf[mutable.HashSet[_]] -> (() => mutable.HashSet.newBuilder[Any]))
+
+  private val maps = Seq[(Class[_], () => mutable.Builder[(Any, Any), AnyRef])](
+    classOf[immutable.Map[_, _]] -> (() => immutable.Map.newBuilder[Any, Any]),
+    classOf[mutable.HashMap[_, _]] -> (() => mutable.HashMap.newBuilder[Any, Any]))
+
+  /**
+   * Create a serializer for the given type
+   * @param tpe the (possibly generic) type to serialize
+   * @param resolve looks up the serializers for element types
+   * @return the serializer, if the type is supported
+   * @throws IllegalArgumentException if an element type of a generic type erases to Object
+   */
+  def create(tpe: Type, resolve: Resolver): Option[Serializer[_]] = {
+    val raw = rawClass(tpe)
+    val args = typeArguments(tpe)
+    for (arg <- args if rawClass(arg) == classOf[AnyRef])
+      throw new IllegalArgumentException("Cannot serialize " + tpe + ", its element type is Object. Scala erases " +
+        "primitive element types like in List[Int] to Object, use an array for primitives instead.")
+    if (raw == null)
+      None
+    else if (raw.isArray) {
+      val component = raw.getComponentType
+      if (component.isPrimitive) PrimitiveArraySerializer.forType(component)
+      else resolve(componentType(tpe)).map(new ObjectArraySerializer(component, _))
+    } else if (raw == classOf[Option[_]] && args.length == 1)
+      resolve(args(0)).map(new OptionSerializer(_))
+    else if (classOf[collection.Map[_, _]].isAssignableFrom(raw) && args.length == 2)
+      for (builder <- maps.find(e => raw.isAssignableFrom(e._1)).map(_._2); k <- resolve(args(0)); v <- resolve(args(1)))
+        yield new MapSerializer(k, v, builder)
+    else if (classOf[collection.Traversable[_]].isAssignableFrom(raw) && args.length == 1)
+      for (builder <- collections.find(e => raw.isAssignableFrom(e._1)).map(_._2); e <- resolve(args(0)))
+        yield new TraversableSerializer(e, builder)
+    else if (raw.isAssignableFrom(classOf[ju.ArrayList[_]]) && classOf[ju.Collection[_]].isAssignableFrom(raw) && args.length == 1)
+      resolve(args(0)).map(new JavaCollectionSerializer(_))
+    else if (raw.isAssignableFrom(classOf[ju.HashMap[_, _]]) && classOf[ju.Map[_, _]].isAssignableFrom(raw) && args.length == 2)
+      for (k <- resolve(args(0)); v <- resolve(args(1)))
+        yield new JavaMapSerializer(k, v)
+    else
+      CaseClassSerializer.forClass(raw, resolve)
+  }
+
+  def rawClass(tpe: Type): Class[_] = tpe match {
+    case c: Class[_] => c
+    case p: ParameterizedType => rawClass(p.getRawType)
+    case a: GenericArrayType =>
+      val component = rawClass(a.getGenericComponentType)
+      if (component == null) null else Array.newInstance(component, 0).getClass
+    case w: WildcardType => rawClass(w.getUpperBounds()(0))
+    case v: TypeVariable[_] => rawClass(v.getBounds()(0))
+    case _ => null
+  }
+
+  private def typeArguments(tpe: Type): Array[Type] = tpe match {
+    case p: ParameterizedType => p.getActualTypeArguments
+    case _ => Array.empty
+  }
+
+  private def componentType(tpe: Type): Type = tpe match {
+    case a: GenericArrayType => a.getGenericComponentType
+    case c: Class[_] => c.getComponentType
+    case _ => rawClass(tpe).getComponentType
+  }
+
+  /**
+   * Guards against absurd element counts in corrupt or malicious data, every element takes at least one byte
+   */
+  private def readLength(buffer: ByteBuf, minBytes: Int): Int = {
+    val length = WireFormat.readVarInt(buffer)
+    if (length < 0 || length.toLong * minBytes > buffer.readableBytes)
+      throw new IllegalStateException("Invalid element count " + length)
+    length
+  }
+
+  final class ObjectArraySerializer(component: Class[_], element: Serializer[Any]) extends Serializer[Array[AnyRef]] {
+    override def serialize0(target: Array[AnyRef], buffer: ByteBuf): Unit = {
+      WireFormat.writeVarInt(buffer, target.length)
+      var i = 0
+      while (i < target.length) {
+        element.serialize(target(i), buffer)
+        i += 1
+      }
+    }
+
+    override def deserialize0(buffer: ByteBuf): Array[AnyRef] = {
+      val result = Array.newInstance(component, readLength(buffer, 1)).asInstanceOf[Array[AnyRef]]
+      var i = 0
+      while (i < result.length) {
+        result(i) = element.deserialize(buffer).asInstanceOf[AnyRef]
+        i += 1
+      }
+      result
+    }
+  }
+
+  final class OptionSerializer(element: Serializer[Any]) extends Serializer[Option[Any]] {
+    override def serialize0(target: Option[Any], buffer: ByteBuf): Unit = {
+      buffer.writeBoolean(target.isDefined)
+      if (target.isDefined)
+        element.serialize(target.get, buffer)
+    }
+
+    override def deserialize0(buffer: ByteBuf): Option[Any] =
+      if (buffer.readBoolean()) Some(element.deserialize(buffer)) else None
+  }
+
+  final class TraversableSerializer(element: Serializer[Any], builder: () => mutable.Builder[Any, AnyRef]) extends Serializer[collection.Traversable[Any]] {
+    override def serialize0(target: collection.Traversable[Any], buffer: ByteBuf): Unit = {
+      WireFormat.writeVarInt(buffer, target.size)
+      target.foreach(element.serialize(_, buffer))
+    }
+
+    override def deserialize0(buffer: ByteBuf): collection.Traversable[Any] = {
+      val length = readLength(buffer, 1)
+      val b = builder()
+      b.sizeHint(length)
+      for (_ <- 0 until length)
+        b += element.deserialize(buffer)
+      b.result().asInstanceOf[collection.Traversable[Any]]
+    }
+  }
+
+  final class MapSerializer(key: Serializer[Any], value: Serializer[Any], builder: () => mutable.Builder[(Any, Any), AnyRef]) extends Serializer[collection.Map[Any, Any]] {
+    override def serialize0(target: collection.Map[Any, Any], buffer: ByteBuf): Unit = {
+      WireFormat.writeVarInt(buffer, target.size)
+      for ((k, v) <- target) {
+        key.serialize(k, buffer)
+        value.serialize(v, buffer)
+      }
+    }
+
+    override def deserialize0(buffer: ByteBuf): collection.Map[Any, Any] = {
+      val length = readLength(buffer, 2)
+      val b = builder()
+      b.sizeHint(length)
+      for (_ <- 0 until length)
+        b += key.deserialize(buffer) -> value.deserialize(buffer)
+      b.result().asInstanceOf[collection.Map[Any, Any]]
+    }
+  }
+
+  final class JavaCollectionSerializer(element: Serializer[Any]) extends Serializer[ju.Collection[Any]] {
+    override def serialize0(target: ju.Collection[Any], buffer: ByteBuf): Unit = {
+      WireFormat.writeVarInt(buffer, target.size)
+      val it = target.iterator()
+      while (it.hasNext)
+        element.serialize(it.next(), buffer)
+    }
+
+    override def deserialize0(buffer: ByteBuf): ju.Collection[Any] = {
+      val length = readLength(buffer, 1)
+      val result = new ju.ArrayList[Any](length)
+      for (_ <- 0 until length)
+        result.add(element.deserialize(buffer))
+      result
+    }
+  }
+
+  final class JavaMapSerializer(key: Serializer[Any], value: Serializer[Any]) extends Serializer[ju.Map[Any, Any]] {
+    override def serialize0(target: ju.Map[Any, Any], buffer: ByteBuf): Unit = {
+      WireFormat.writeVarInt(buffer, target.size)
+      val it = target.entrySet().iterator()
+      while (it.hasNext) {
+        val e = it.next()
+        key.serialize(e.getKey, buffer)
+        value.serialize(e.getValue, buffer)
+      }
+    }
+
+    override def deserialize0(buffer: ByteBuf): ju.Map[Any, Any] = {
+      val length = readLength(buffer, 2)
+      val result = new ju.HashMap[Any, Any](length * 4 / 3 + 1)
+      for (_ <- 0 until length)
+        result.put(key.deserialize(buffer), value.deserialize(buffer))
+      result
+    }
+  }
+
+  /**
+   * Writes the fields of a case class in declaration order and recreates it through its primary constructor.
+   * Field serializers are resolved on first use, so case classes may contain themselves.
+   */
+  final class CaseClassSerializer(constructor: Constructor[_], fields: Array[Field], resolve: Resolver) extends Serializer[AnyRef] {
+    private lazy val serializers = fields.map(f => resolve(f.getGenericType).get)
+
+    override def serialize0(target: AnyRef, buffer: ByteBuf): Unit = {
+      val s = serializers
+      var i = 0
+      while (i < fields.length) {
+        s(i).serialize(fields(i).get(target), buffer)
+        i += 1
+      }
+    }
+
+    override def deserialize0(buffer: ByteBuf): AnyRef = {
+      val s = serializers
+      val values = new Array[AnyRef](fields.length)
+      var i = 0
+      while (i < fields.length) {
+        values(i) = s(i).deserialize(buffer).asInstanceOf[AnyRef]
+        i += 1
+      }
+      constructor.newInstance(values: _*).asInstanceOf[AnyRef]
+    }
+  }
+
+  object CaseClassSerializer {
+    private val inProgress = new ThreadLocal[mutable.Set[Class[_]]] {
+      override def initialValue(): mutable.Set[Class[_]] = mutable.Set.empty
+    }
+
+    /**
+     * @return a serializer for a concrete case class whose fields all have serializers
+     */
+    def forClass(clazz: Class[_], resolve: Resolver): Option[Serializer[_]] = {
+      if (!classOf[Product].isAssignableFrom(clazz) || clazz.isInterface || Modifier.isAbstract(clazz.getModifiers))
+        return None
+      val fields = clazz.getDeclaredFields.filter(f => !Modifier.isStatic(f.getModifiers))
+      val constructor = clazz.getDeclaredConstructors.find(_.getParameterTypes.sameElements(fields.map(_.getType)))
+      if (constructor.isEmpty)
+        return None
+      // A case class containing itself is supported, its own fields are checked by the outermost call
+      val visiting = inProgress.get()
+      if (!visiting.contains(clazz)) {
+        visiting += clazz
+        try {
+          if (!fields.forall(f => f.getType == clazz || resolve(f.getGenericType).isDefined))
+            return None
+        } finally {
+          visiting -= clazz
+        }
+      }
+      constructor.get.setAccessible(true)
+      fields.foreach(_.setAccessible(true))
+      Some(new CaseClassSerializer(constructor.get, fields, resolve))
+    }
+  }
+
+  /**
+   * Arrays of primitives, written as their length followed by the raw big-endian values in one bulk copy
+   */
+  abstract class PrimitiveArraySerializer[A](width: Int) extends Serializer[A] {
+    protected def length(array: A): Int
+
+    protected def create(length: Int): A
+
+    protected def put(view: ByteBuffer, array: A): Unit
+
+    protected def get(view: ByteBuffer, array: A): Unit
+
+    override def serialize0(target: A, buffer: ByteBuf): Unit = {
+      val n = length(target)
+      WireFormat.writeVarInt(buffer, n)
+      val bytes = n * width
+      buffer.ensureWritable(bytes)
+      if (buffer.hasArray) {
+        put(ByteBuffer.wrap(buffer.array, buffer.arrayOffset + buffer.writerIndex, bytes).slice(), target)
+        buffer.writerIndex(buffer.writerIndex + bytes)
+      } else {
+        val view = ByteBuffer.allocate(bytes)
+        put(view, target)
+        buffer.writeBytes(view.array)
+      }
+    }
+
+    override def deserialize0(buffer: ByteBuf): A = {
+      val n = readLength(buffer, width)
+      val bytes = n * width
+      val result = create(n)
+      get(buffer.nioBuffer(buffer.readerIndex, bytes), result)
+      buffer.skipBytes(bytes)
+      result
+    }
+  }
+
+  object PrimitiveArraySerializer {
+    def forType(component: Class[_]): Option[Serializer[_]] = Option(component match {
+      case java.lang.Byte.TYPE => new PrimitiveArraySerializer[Array[Byte]](1) {
+        override protected def length(array: Array[Byte]): Int = array.length
+
+        override protected def create(length: Int): Array[Byte] = new Array[Byte](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Byte]): Unit = view.put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Byte]): Unit = view.get(array)
+      }
+      case java.lang.Boolean.TYPE => new PrimitiveArraySerializer[Array[Boolean]](1) {
+        override protected def length(array: Array[Boolean]): Int = array.length
+
+        override protected def create(length: Int): Array[Boolean] = new Array[Boolean](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Boolean]): Unit =
+          for (b <- array) view.put((if (b) 1 else 0).toByte)
+
+        override protected def get(view: ByteBuffer, array: Array[Boolean]): Unit =
+          for (i <- array.indices) array(i) = view.get() != 0
+      }
+      case java.lang.Short.TYPE => new PrimitiveArraySerializer[Array[Short]](2) {
+        override protected def length(array: Array[Short]): Int = array.length
+
+        override protected def create(length: Int): Array[Short] = new Array[Short](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Short]): Unit = view.asShortBuffer().put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Short]): Unit = view.asShortBuffer().get(array)
+      }
+      case java.lang.Character.TYPE => new PrimitiveArraySerializer[Array[Char]](2) {
+        override protected def length(array: Array[Char]): Int = array.length
+
+        override protected def create(length: Int): Array[Char] = new Array[Char](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Char]): Unit = view.asCharBuffer().put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Char]): Unit = view.asCharBuffer().get(array)
+      }
+      case java.lang.Integer.TYPE => new PrimitiveArraySerializer[Array[Int]](4) {
+        override protected def length(array: Array[Int]): Int = array.length
+
+        override protected def create(length: Int): Array[Int] = new Array[Int](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Int]): Unit = view.asIntBuffer().put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Int]): Unit = view.asIntBuffer().get(array)
+      }
+      case java.lang.Float.TYPE => new PrimitiveArraySerializer[Array[Float]](4) {
+        override protected def length(array: Array[Float]): Int = array.length
+
+        override protected def create(length: Int): Array[Float] = new Array[Float](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Float]): Unit = view.asFloatBuffer().put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Float]): Unit = view.asFloatBuffer().get(array)
+      }
+      case java.lang.Long.TYPE => new PrimitiveArraySerializer[Array[Long]](8) {
+        override protected def length(array: Array[Long]): Int = array.length
+
+        override protected def create(length: Int): Array[Long] = new Array[Long](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Long]): Unit = view.asLongBuffer().put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Long]): Unit = view.asLongBuffer().get(array)
+      }
+      case java.lang.Double.TYPE => new PrimitiveArraySerializer[Array[Double]](8) {
+        override protected def length(array: Array[Double]): Int = array.length
+
+        override protected def create(length: Int): Array[Double] = new Array[Double](length)
+
+        override protected def put(view: ByteBuffer, array: Array[Double]): Unit = view.asDoubleBuffer().put(array)
+
+        override protected def get(view: ByteBuffer, array: Array[Double]): Unit = view.asDoubleBuffer().get(array)
+      }
+      case _ => null
+    })
+  }
+}
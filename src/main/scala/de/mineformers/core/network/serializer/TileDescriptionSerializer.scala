@@ -24,9 +24,9 @@
 package de.mineformers.core.network.serializer
 
 import de.mineformers.core.network.Message.Serializer
-import de.mineformers.core.tileentity.{Describable, TileDescription}
+import de.mineformers.core.network.WireFormat
+import de.mineformers.core.tileentity.{DescriptionRegistry, TileDescription}
 import io.netty.buffer.ByteBuf
-import net.minecraftforge.fml.common.network.ByteBufUtils
 
 /**
  * TileDescriptionSerializer
@@ -35,13 +35,12 @@ import net.minecraftforge.fml.common.network.ByteBufUtils
  */
 class TileDescriptionSerializer extends Serializer[TileDescription] {
   override def serialize0(target: TileDescription, buffer: ByteBuf): Unit = {
-    ByteBufUtils.writeUTF8String(buffer, target.parentClass.getName)
+    WireFormat.writeVarInt(buffer, DescriptionRegistry.idOf(target.parentClass))
     target.write(buffer)
   }
 
   override def deserialize0(buffer: ByteBuf): TileDescription = {
-    val clazz = Class.forName(ByteBufUtils.readUTF8String(buffer))
-    val desc = new TileDescription(clazz.asInstanceOf[Class[Describable]])
+    val desc = DescriptionRegistry.plan(WireFormat.readVarInt(buffer)).create()
     desc.read(buffer)
     desc
   }
@@ -77,7 +77,7 @@ object ModMaticFile {
       val data: Array[Byte] = tag.getByteArray("Data")
       val buf: ShortBuffer = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN).asShortBuffer
       for (y <- 0 until height) {
-        val layer: Layer = new Layer(width, length)
+        val layer: Layer = new Layer(width, length, true)
         for (x <- 0 until width; z <- 0 until length) {
           val dat: Short = buf.get
           val id: Short = (dat >> 4).asInstanceOf[Short]
@@ -96,13 +96,7 @@ class Structure(private val layers: mutable.Buffer[Layer] = mutable.Buffer.empty
 
   def blockTypes: Seq[BlockEntry] = for {
     layer <- layers
-    row <- layer.blocks
-    block <- row
-    entries = block match {
-      case b: MultiBlockInfo => b.blocks
-      case _ => Seq(block.getEntry)
-    }
-    entry <- entries
+    entry <- layer.entries
     if entry.block != null && entry.block != Blocks.air
   } yield entry
 
@@ -81,7 +81,7 @@ object StructureHelper {
     val maxY: Int = bounds.maxY.toInt
     val maxZ: Int = bounds.maxZ.toInt
     for (y <- minY to maxY) {
-      val layer: Layer = new Layer((maxX - minX) + 1, (maxZ - minZ) + 1)
+      val layer: Layer = new Layer((maxX - minX) + 1, (maxZ - minZ) + 1, true)
       for (x <- minX to maxX; z <- minZ to maxZ) {
         val pos = BlockPos(x, y, z)
         if (world.getBlockState(pos) != null) {
@@ -156,8 +156,11 @@ class StructureConfiguration(possibleLayers: Seq[ConfigurableLayer]) {
 class ConfigurableLayer(width: Int, length: Int, val required: Boolean = false, val min: Int = 0, val max: Int = -1) extends Layer(width, length) {
   def this(l: Layer) = {
     this(l.width, l.length)
-    for (x <- l.blocks; b <- x)
-      set(b)
+    for (info <- l.infos)
+      info match {
+        case packed: PackedBlockInfo => set(packed.copy)
+        case _ => set(info)
+      }
   }
 }
 
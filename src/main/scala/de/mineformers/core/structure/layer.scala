@@ -30,13 +30,23 @@ import net.minecraft.nbt.NBTTagCompound
 import net.minecraft.util.EnumFacing
 import net.minecraft.world.World
 
+import scala.collection.mutable
+
 /**
  * Layer
  *
+ * Stores its blocks either as one [[BlockInfo]] per cell or, if packed, in [[PackedBlocks]]. Packed layers create
+ * their block infos on demand, changes to them are written back to the layer, but changes to the [[BlockEntry]]
+ * returned from `getEntry` are not.
+ *
+ * @param packed true, if the layer should use the packed storage, recommended for large structures
  * @author PaleoCrafter
  */
-class Layer(val width: Int, val length: Int) {
-  private[structure] val blocks = Array.ofDim[BlockInfo](width, length)
+class Layer(val width: Int, val length: Int, val packed: Boolean) {
+  def this(width: Int, length: Int) = this(width, length, false)
+
+  private val blocks = if (packed) null else Array.ofDim[BlockInfo](width, length)
+  private[structure] val storage = if (packed) new PackedBlocks(width * length) else null
 
   def set(x: Int, z: Int, block: Block, metadata: Int) {
     set(x, z, block, metadata, null)
@@ -45,19 +55,38 @@ class Layer(val width: Int, val length: Int) {
   def set(x: Int, z: Int, block: Block, metadata: Int, tileEntity: NBTTagCompound) {
     val clampedX: Int = clampX(x)
     val clampedZ: Int = clampZ(z)
-    set(new SimpleBlockInfo(block, clampedX, clampedZ, (metadata & 0xF).asInstanceOf[Byte], tileEntity))
+    if (packed) {
+      if (tileEntity != null) {
+        tileEntity.setInteger("x", clampedX)
+        tileEntity.setInteger("z", clampedZ)
+      }
+      storage.set(cell(clampedX, clampedZ), block, (metadata & 0xF).toByte, tileEntity)
+    } else
+      set(new SimpleBlockInfo(block, clampedX, clampedZ, (metadata & 0xF).asInstanceOf[Byte], tileEntity))
   }
 
   def set(info: BlockInfo) {
-    blocks(info.x)(info.z) = info
+    if (!packed)
+      blocks(info.x)(info.z) = info
+    else if (info.getClass == classOf[SimpleBlockInfo] || info.isInstanceOf[PackedBlockInfo])
+      set(info.x, info.z, info.getBlock, info.getMetadata, info.getTileEntity)
+    else
+      storage.setSpecial(cell(info.x, info.z), info)
   }
 
   def remove(x: Int, z: Int) {
-    blocks(clampX(x))(clampZ(z)) = null
+    if (packed)
+      storage.remove(cell(clampX(x), clampZ(z)))
+    else
+      blocks(clampX(x))(clampZ(z)) = null
   }
 
   def get(x: Int, z: Int): BlockInfo = {
     if (x >= width || z >= length || x < 0 || z < 0) return null
+    if (packed) {
+      val special = storage.special(cell(x, z))
+      return if (special != null) special else new PackedBlockInfo(this, x, z)
+    }
     var info: BlockInfo = blocks(x)(z)
     if (info == null) {
       info = new SimpleBlockInfo(Blocks.air, x, z, 0.asInstanceOf[Byte])
@@ -66,29 +95,265 @@ class Layer(val width: Int, val length: Int) {
     info
   }
 
+  /**
+   * @return the block infos of all cells that were set, cells of packed layers are viewed through
+   *         [[PackedBlockInfo]]s, which write through to this layer
+   */
+  def infos: Iterator[BlockInfo] =
+    if (packed)
+      (0 until width * length).iterator filter {
+        i => storage.special(i) != null || !storage.isEmpty(i)
+      } map (i => get(i / length, i % length))
+    else
+      blocks.iterator.flatMap(_.iterator).filter(_ != null)
+
+  /**
+   * @return the entries of all cells that were set, without creating block infos for packed layers
+   */
+  def entries: Iterator[BlockEntry] = {
+    def of(info: BlockInfo): Seq[BlockEntry] = info match {
+      case b: MultiBlockInfo => b.blocks
+      case _ => Seq(info.getEntry)
+    }
+    if (packed)
+      (0 until width * length).iterator flatMap {
+        i =>
+          val special = storage.special(i)
+          if (special != null) of(special)
+          else if (storage.isEmpty(i)) Nil
+          else Seq(BlockEntry(storage.block(i), storage.metadata(i), storage.tile(i)))
+      }
+    else
+      blocks.iterator.flatMap(_.iterator).filter(_ != null).flatMap(of)
+  }
+
+  private[structure] def cell(x: Int, z: Int): Int = x * length + z
+
   private def clampX(x: Int): Int = math.min(math.max(x, 0), width - 1)
 
   private def clampZ(z: Int): Int = math.min(math.max(z, 0), length - 1)
 
   def copy: Layer = {
-    val layer: Layer = new Layer(width, length)
-    for (x <- 0 until width; z <- 0 until length) {
-      val info = get(x, z)
-      if (info != null) {
-        layer.set(info.copy)
+    val layer: Layer = new Layer(width, length, packed)
+    if (packed)
+      storage.copyTo(layer.storage)
+    else
+      for (x <- 0 until width; z <- 0 until length) {
+        val info = get(x, z)
+        if (info != null) {
+          layer.set(info.copy)
+        }
       }
-    }
     layer
   }
 
   override def toString: String = {
     var s: String = "Layer=["
-    s += blocks.deep.mkString(",")
+    s += (if (packed) (for (x <- 0 until width; z <- 0 until length) yield get(x, z)).mkString(",") else blocks.deep.mkString(","))
     s += "]"
     s
   }
 }
 
+/**
+ * PackedBlocks
+ *
+ * Block storage working like the sections of vanilla chunks: every cell is an index into a palette of block and
+ * metadata pairs, packed into as few bits as the palette needs. Index 0 is air, which is also what empty cells hold.
+ * Tile entity tags and cells with their own [[BlockInfo]] implementation (e.g. [[MultiBlockInfo]]) are kept in sparse
+ * maps.
+ *
+ * @param size the number of cells
+ * @author PaleoCrafter
+ */
+private[structure] class PackedBlocks(val size: Int) {
+  private val palette = mutable.ArrayBuffer[(Block, Byte)](Blocks.air -> 0.toByte)
+  private val paletteIds = mutable.HashMap[(Block, Byte), Int]((Blocks.air -> 0.toByte) -> 0)
+  private var bits = 4
+  private var data = new Array[Long](PackedBlocks.longs(size, bits))
+  private val tiles = mutable.HashMap.empty[Int, NBTTagCompound]
+  private val specials = mutable.HashMap.empty[Int, BlockInfo]
+
+  def block(cell: Int): Block = palette(index(cell))._1
+
+  def metadata(cell: Int): Byte = palette(index(cell))._2
+
+  def tile(cell: Int): NBTTagCompound = tiles.getOrElse(cell, null)
+
+  def special(cell: Int): BlockInfo = specials.getOrElse(cell, null)
+
+  /**
+   * @return true, if the cell holds plain air without a tile entity
+   */
+  def isEmpty(cell: Int): Boolean = index(cell) == 0 && !tiles.contains(cell)
+
+  def set(cell: Int, block: Block, metadata: Byte, tile: NBTTagCompound): Unit = {
+    specials -= cell
+    if (tile != null)
+      tiles(cell) = tile
+    else
+      tiles -= cell
+    write(cell, idOf(block, metadata))
+  }
+
+  def setSpecial(cell: Int, info: BlockInfo): Unit = {
+    tiles -= cell
+    write(cell, 0)
+    specials(cell) = info
+  }
+
+  def remove(cell: Int): Unit = {
+    specials -= cell
+    tiles -= cell
+    write(cell, 0)
+  }
+
+  /**
+   * Copy the contents of this storage into another one, the copy's palette only holds the entries still in use.
+   * Tile entity tags and special cells are copied too, so the two storages don't share any mutable state.
+   */
+  def copyTo(target: PackedBlocks): Unit = {
+    target.palette.clear()
+    target.palette ++= palette
+    target.paletteIds.clear()
+    target.paletteIds ++= paletteIds
+    target.bits = bits
+    target.data = data.clone()
+    for ((cell, tile) <- tiles)
+      target.tiles(cell) = tile.copy.asInstanceOf[NBTTagCompound]
+    for ((cell, info) <- specials)
+      target.specials(cell) = info.copy
+    target.compact()
+  }
+
+  /**
+   * The palette only ever grows while cells are set, remove the entries no cell uses anymore and shrink the cells to
+   * as few bits as the remaining entries need.
+   */
+  def compact(): Unit = {
+    val used = new Array[Boolean](palette.length)
+    used(0) = true
+    var cell = 0
+    while (cell < size) {
+      used(index(cell)) = true
+      cell += 1
+    }
+    if (used.forall(identity))
+      return
+    val remapped = new Array[Int](palette.length)
+    val kept = mutable.ArrayBuffer.empty[(Block, Byte)]
+    paletteIds.clear()
+    for (i <- palette.indices if used(i)) {
+      remapped(i) = kept.length
+      paletteIds(palette(i)) = kept.length
+      kept += palette(i)
+    }
+    palette.clear()
+    palette ++= kept
+    val oldBits = bits
+    val oldData = data
+    bits = PackedBlocks.bitsFor(palette.length)
+    data = new Array[Long](PackedBlocks.longs(size, bits))
+    cell = 0
+    while (cell < size) {
+      write(cell, remapped(PackedBlocks.read(oldData, oldBits, cell)))
+      cell += 1
+    }
+  }
+
+  /**
+   * @return the number of entries in the palette
+   */
+  def paletteSize: Int = palette.length
+
+  /**
+   * @return the number of bits every cell takes up
+   */
+  def bitsPerCell: Int = bits
+
+  private def idOf(block: Block, metadata: Byte): Int = paletteIds.getOrElse(block -> metadata, {
+    val id = palette.length
+    palette += block -> metadata
+    paletteIds(block -> metadata) = id
+    if (id >= (1 << bits))
+      resize(bits + 1)
+    id
+  })
+
+  private def index(cell: Int): Int = PackedBlocks.read(data, bits, cell)
+
+  private def write(cell: Int, id: Int): Unit = {
+    val perLong = 64 / bits
+    val shift = (cell % perLong) * bits
+    val mask = ((1L << bits) - 1) << shift
+    val i = cell / perLong
+    data(i) = (data(i) & ~mask) | (id.toLong << shift)
+  }
+
+  private def resize(newBits: Int): Unit = {
+    val oldBits = bits
+    val oldData = data
+    bits = newBits
+    data = new Array[Long](PackedBlocks.longs(size, newBits))
+    var cell = 0
+    while (cell < size) {
+      write(cell, PackedBlocks.read(oldData, oldBits, cell))
+      cell += 1
+    }
+  }
+}
+
+private[structure] object PackedBlocks {
+  /**
+   * @return the number of longs needed to store the given number of cells, indices don't span two longs
+   */
+  def longs(size: Int, bits: Int): Int = {
+    val perLong = 64 / bits
+    (size + perLong - 1) / perLong
+  }
+
+  /**
+   * @return the number of bits needed for the given number of palette entries, at least 4 like vanilla chunks
+   */
+  def bitsFor(entries: Int): Int = math.max(4, 32 - Integer.numberOfLeadingZeros(entries - 1))
+
+  def read(data: Array[Long], bits: Int, cell: Int): Int = {
+    val perLong = 64 / bits
+    ((data(cell / perLong) >>> ((cell % perLong) * bits)) & ((1L << bits) - 1)).toInt
+  }
+}
+
+/**
+ * PackedBlockInfo
+ *
+ * A view on one cell of a packed [[Layer]], created on demand. Changes are written back to the layer.
+ *
+ * @author PaleoCrafter
+ */
+class PackedBlockInfo(layer: Layer, _x: Int, _z: Int) extends BlockInfo(_x, _z) {
+  private def cell = layer.cell(x, z)
+
+  override def getEntry: BlockEntry = BlockEntry(getBlock, getMetadata, getTileEntity)
+
+  override def getBlock: Block = layer.storage.block(cell)
+
+  override def getMetadata: Byte = layer.storage.metadata(cell)
+
+  override def getTileEntity: NBTTagCompound = layer.storage.tile(cell)
+
+  override def setBlock(block: Block): Unit = layer.set(x, z, block, getMetadata, getTileEntity)
+
+  override def setMetadata(metadata: Int): Unit = layer.set(x, z, getBlock, metadata, getTileEntity)
+
+  override def setTile(tile: NBTTagCompound): Unit = layer.set(x, z, getBlock, getMetadata, tile)
+
+  override def rotate(world: World, y: Int, axis: EnumFacing): Unit = {
+    getBlock.rotateBlock(world, BlockPos(x, y, z), axis)
+  }
+
+  def copy: BlockInfo = new SimpleBlockInfo(getBlock, x, z, getMetadata, getTileEntity)
+}
+
 abstract class BlockInfo(private var _x: Int, private var _z: Int) {
   def x = _x
 
@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+import de.mineformers.core.MFCore
+import de.mineformers.core.network.DescriptionClassesMessage
+import de.mineformers.core.util.Log
+import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.launchwrapper.Launch
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.{PlayerEvent, TickEvent}
+import net.minecraftforge.fml.common.network.FMLNetworkEvent
+
+import scala.collection.mutable
+
+/**
+ * DescriptionRegistry
+ *
+ * Assigns integer ids to [[Describable]] classes, so descriptions don't have to carry the class name.
+ * Ids are handed out by the server on first use, the full table is sent to players when they log in and new ids are
+ * broadcast outside of message encoding, either by [[announce]] before a description is sent or at the end of the
+ * server tick. The client resolves every class once and keeps a [[DescriptionPlan]] per id.
+ *
+ * @author PaleoCrafter
+ */
+object DescriptionRegistry {
+  private val ids = mutable.HashMap.empty[Class[_], Int]
+  private val names = mutable.ArrayBuffer.empty[String]
+  @volatile private var plans = Array.empty[DescriptionPlan]
+  /**
+   * The number of ids that have been broadcast
+   */
+  private var announced = 0
+
+  /**
+   * Get the id of a describable class on the server, assigning a new one if necessary. New ids are only broadcast by
+   * the next call to [[flush]], so this is safe to call while encoding a message.
+   * @param clazz the class to get the id for
+   * @return the id of the class
+   */
+  def idOf(clazz: Class[_]): Int = synchronized {
+    ids.getOrElse(clazz, {
+      val id = names.length
+      ids(clazz) = id
+      names += clazz.getName
+      id
+    })
+  }
+
+  /**
+   * Make sure players know the id of a class before a description of it is sent to them.
+   * Must be called from the server thread, never while encoding a message.
+   * @param clazz the describable class
+   */
+  def announce(clazz: Class[_]): Unit = {
+    idOf(clazz)
+    flush()
+  }
+
+  /**
+   * Broadcast the ids assigned since the last call
+   */
+  def flush(): Unit = {
+    var start = 0
+    val classes = synchronized {
+      start = announced
+      announced = names.length
+      names.slice(start, names.length).toArray
+    }
+    if (classes.nonEmpty)
+      MFCore.net.sendToAll(new DescriptionClassesMessage(start, classes))
+  }
+
+  /**
+   * Get the client side plan for a class id
+   * @param id the id sent by the server
+   * @return the plan for creating descriptions of the class
+   */
+  def plan(id: Int): DescriptionPlan = {
+    val current = plans
+    if (id < 0 || id >= current.length || current(id) == null)
+      throw new IllegalStateException("Unknown describable class id " + id)
+    current(id)
+  }
+
+  /**
+   * Record class ids received from the server
+   * @param start the id of the first class
+   * @param classes the names of the classes, in id order
+   */
+  def receive(start: Int, classes: Array[String]): Unit = synchronized {
+    val updated =
+      if (start == 0) new Array[DescriptionPlan](classes.length)
+      else java.util.Arrays.copyOf(plans, math.max(plans.length, start + classes.length))
+    for (i <- classes.indices)
+      updated(start + i) = resolve(classes(i))
+    plans = updated
+  }
+
+  /**
+   * Resolve a class name sent by the server without initializing the class
+   * @return the plan for the class, null if it doesn't exist or isn't describable
+   */
+  private def resolve(name: String): DescriptionPlan = {
+    try {
+      val clazz = Class.forName(name, false, Launch.classLoader)
+      if (classOf[Describable].isAssignableFrom(clazz))
+        return new DescriptionPlan(clazz.asInstanceOf[Class[Describable]])
+      Log.warn("Server sent description class " + name + ", which isn't describable")
+    } catch {
+      case e: ClassNotFoundException =>
+        Log.warn("Server sent unknown description class " + name)
+      case e: LinkageError =>
+        Log.warn("Failed to load description class " + name, e)
+    }
+    null
+  }
+
+  /**
+   * Forget the classes of the server the client was connected to
+   */
+  @SubscribeEvent
+  def onClientDisconnect(event: FMLNetworkEvent.ClientDisconnectionFromServerEvent): Unit = synchronized {
+    plans = Array.empty[DescriptionPlan]
+  }
+
+  @SubscribeEvent
+  def onServerTick(event: TickEvent.ServerTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.END)
+      flush()
+  }
+
+  @SubscribeEvent
+  def onPlayerLogin(event: PlayerEvent.PlayerLoggedInEvent): Unit = {
+    val table = synchronized(names.toArray)
+    MFCore.net.sendTo(new DescriptionClassesMessage(0, table), event.player.asInstanceOf[EntityPlayerMP])
+  }
+}
+
+/**
+ * DescriptionPlan
+ *
+ * The resolved class and fields of a describable class, used to create descriptions without looking them up again.
+ *
+ * @author PaleoCrafter
+ */
+final class DescriptionPlan(val parentClass: Class[Describable]) {
+  val fields = Describable.collectFields(parentClass)
+
+  def create(): TileDescription = new TileDescription(parentClass, fields)
+}
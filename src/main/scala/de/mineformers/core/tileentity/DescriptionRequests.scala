@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+import java.util.UUID
+
+import de.mineformers.core.MFCore
+import de.mineformers.core.network.TileDescriptionMessage
+import de.mineformers.core.util.world.BlockPos
+import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.server.MinecraftServer
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.{PlayerEvent, TickEvent}
+
+import scala.collection.mutable
+
+/**
+ * DescriptionRequests
+ *
+ * Answers the [[de.mineformers.core.network.TileDescriptionRequest]]s of clients which missed a description delta.
+ * Requests are queued per player and answered at the end of the server tick, at most [[MaxPerTick]] per player, the
+ * rest waits for the following ticks. Only positions in loaded chunks the player is watching are answered, so clients
+ * can't make the server load chunks or learn about tiles they can't see.
+ *
+ * @author PaleoCrafter
+ */
+object DescriptionRequests {
+  /**
+   * The number of requests answered per player and tick
+   */
+  final val MaxPerTick = 32
+  /**
+   * The number of requests queued per player, further requests are dropped
+   */
+  final val MaxQueued = 1024
+  private val pending = mutable.LinkedHashMap.empty[UUID, mutable.LinkedHashSet[BlockPos]]
+
+  /**
+   * Queue a request, must be called from the server thread
+   * @param player the player requesting the description
+   * @param pos the position of the tile
+   */
+  def queue(player: EntityPlayerMP, pos: BlockPos): Unit = {
+    val queue = pending.getOrElseUpdate(player.getUniqueID, mutable.LinkedHashSet.empty[BlockPos])
+    if (queue.size < MaxQueued)
+      queue += pos
+  }
+
+  private def answer(player: EntityPlayerMP, pos: BlockPos): Unit = {
+    val world = player.getServerForPlayer
+    if (!world.isBlockLoaded(pos) || !world.getPlayerManager.isPlayerWatchingChunk(player, pos.x >> 4, pos.z >> 4))
+      return
+    world.getTileEntity(pos) match {
+      case d: Describable =>
+        val desc = d.fullDescription()
+        if (desc != null)
+          MFCore.net.sendTo(TileDescriptionMessage(pos, desc), player)
+      case _ =>
+    }
+  }
+
+  @SubscribeEvent
+  def onServerTick(event: TickEvent.ServerTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.END && pending.nonEmpty) {
+      val manager = MinecraftServer.getServer.getConfigurationManager
+      val done = mutable.ArrayBuffer.empty[UUID]
+      for ((id, queue) <- pending) {
+        val player = manager.getPlayerByUUID(id)
+        if (player == null)
+          queue.clear()
+        else {
+          val batch = queue.take(MaxPerTick).toList
+          queue --= batch
+          for (pos <- batch)
+            answer(player, pos)
+        }
+        if (queue.isEmpty)
+          done += id
+      }
+      pending --= done
+    }
+  }
+
+  @SubscribeEvent
+  def onPlayerLogout(event: PlayerEvent.PlayerLoggedOutEvent): Unit = pending.remove(event.player.getUniqueID)
+}
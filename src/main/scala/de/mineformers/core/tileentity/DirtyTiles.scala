@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+import net.minecraft.world.World
+import net.minecraftforge.event.world.WorldEvent
+import net.minecraftforge.fml.common.eventhandler.{EventPriority, SubscribeEvent}
+import net.minecraftforge.fml.common.gameevent.TickEvent
+
+import scala.collection.mutable
+
+/**
+ * DirtyTiles
+ *
+ * Collects the [[MFTile]]s whose state changed during a world tick and updates each of them once at the end of it,
+ * no matter how often it changed. Only used on the server, the client applies changes immediately.
+ * The tiles are updated after every other handler of the world tick's end, in particular after the [[TileScheduler]]
+ * and [[ParallelTicks]] have run, so the changes they make are sent in the same tick.
+ *
+ * @author PaleoCrafter
+ */
+object DirtyTiles {
+  /**
+   * One of the tile's [[Describing]] fields changed, clients have to be sent a new description
+   */
+  final val DescriptionChanged = 1
+  /**
+   * [[MFTile.updateState]] was called, neighbors have to be notified
+   */
+  final val StateChanged = 2
+  private val pending = mutable.HashMap.empty[World, mutable.LinkedHashSet[MFTile]]
+
+  /**
+   * Queue a tile to be updated at the end of the tick
+   * @param tile the tile that changed
+   * @param flags what changed about the tile
+   */
+  private[tileentity] def mark(tile: MFTile, flags: Int): Unit = {
+    if (tile.dirtyFlags == 0)
+      pending.getOrElseUpdate(tile.getWorld, mutable.LinkedHashSet.empty[MFTile]) += tile
+    tile.dirtyFlags |= flags
+  }
+
+  @SubscribeEvent(priority = EventPriority.LOWEST)
+  def onWorldTick(event: TickEvent.WorldTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.END) {
+      pending.remove(event.world) foreach {
+        tiles =>
+          for (tile <- tiles) {
+            val flags = tile.dirtyFlags
+            tile.dirtyFlags = 0
+            if (!tile.isInvalid)
+              tile.applyState(flags)
+          }
+      }
+    }
+  }
+
+  @SubscribeEvent
+  def onWorldUnload(event: WorldEvent.Unload): Unit = {
+    if (!event.world.isRemote)
+      pending.remove(event.world)
+  }
+}
@@ -24,6 +24,7 @@
 package de.mineformers.core.tileentity
 
 import de.mineformers.core.util.math.Vector3
+import net.minecraft.block.Block
 import net.minecraft.server.gui.IUpdatePlayerListBox
 import net.minecraft.tileentity.TileEntity
 import net.minecraftforge.fml.relauncher.{Side, SideOnly}
@@ -37,17 +38,37 @@ import scala.util.Random
  */
 class MFTile extends TileEntity with IUpdatePlayerListBox {
   private var initialized = false
+  private var interval = 1
+  private var sleeping = false
+  private[tileentity] var unloaded = false
+  private[tileentity] var detached = false
+  private[tileentity] var tickTask: TileScheduler.Task = null
+  private[tileentity] var dirtyFlags = 0
   lazy val random = new Random(pos.hashCode)
 
   final override def update(): Unit = {
+    val profiled = TileProfiler.sampled(worldObj.isRemote)
     if (!initialized) {
+      val start = if (profiled) System.nanoTime() else 0L
       init()
       initialized = true
+      if (!worldObj.isRemote && (sleeping || interval > 1))
+        TileScheduler.update(this)
+      if (profiled)
+        TileProfiler.recordInit(this, System.nanoTime() - start)
     }
+    val start = if (profiled) System.nanoTime() else 0L
     if (worldObj.isRemote)
       updateClient()
-    else
+    else {
       updateServer()
+      this match {
+        case compute: ParallelCompute[_, _] => ParallelTicks.queue(this, compute)
+        case _ =>
+      }
+    }
+    if (profiled)
+      TileProfiler.recordUpdate(this, System.nanoTime() - start)
   }
 
   def init(): Unit = ()
@@ -57,6 +78,82 @@ class MFTile extends TileEntity with IUpdatePlayerListBox {
 
   def updateServer(): Unit = ()
 
+  /**
+   * @return the number of ticks between two updates on the server
+   */
+  def tickInterval: Int = interval
+
+  /**
+   * Update this tile only every few ticks on the server. The client still updates it every tick.
+   * @param interval the number of ticks between two updates, 1 to update every tick
+   */
+  def tickInterval_=(interval: Int): Unit = {
+    this.interval = math.max(interval, 1)
+    reschedule()
+  }
+
+  /**
+   * @return true, if this tile is not updated on the server until it is woken up
+   */
+  def isSleeping: Boolean = sleeping
+
+  /**
+   * Stop updating this tile on the server until [[wake]] is called. Sleeping tiles don't cost anything per tick.
+   * The sleep state isn't saved, tiles update normally after being loaded.
+   */
+  def sleep(): Unit = {
+    if (!sleeping) {
+      sleeping = true
+      reschedule()
+    }
+  }
+
+  /**
+   * Resume updating this tile on the server.
+   */
+  def wake(): Unit = {
+    if (sleeping) {
+      sleeping = false
+      reschedule()
+    }
+  }
+
+  /**
+   * Run a callback on the server after some ticks, even while the tile is sleeping. The callback is dropped if the
+   * tile is removed or unloaded in the meantime.
+   * @param delay the number of ticks to wait
+   * @param callback the code to run
+   */
+  def schedule(delay: Int)(callback: => Unit): Unit = {
+    if (worldObj != null && !worldObj.isRemote)
+      TileScheduler.schedule(this, delay, () => callback)
+  }
+
+  /**
+   * Called through [[de.mineformers.core.block.TileProvider.notifyNeighborChanged]] when a neighboring block changes,
+   * wakes the tile by default.
+   * @param neighbor the block that changed
+   */
+  def onNeighborChanged(neighbor: Block): Unit = wake()
+
+  private def reschedule(): Unit = {
+    if (initialized && worldObj != null && !worldObj.isRemote)
+      TileScheduler.update(this)
+  }
+
+  override def invalidate(): Unit = {
+    super.invalidate()
+    if (worldObj != null && !worldObj.isRemote)
+      TileScheduler.remove(this)
+  }
+
+  override def onChunkUnload(): Unit = {
+    super.onChunkUnload()
+    unloaded = true
+    if (worldObj != null && !worldObj.isRemote)
+      TileScheduler.remove(this)
+  }
+
   def vecPos = Vector3(x, y, z)
 
   def destroy(): Unit = {
@@ -69,10 +166,33 @@ class MFTile extends TileEntity with IUpdatePlayerListBox {
 
   def z = pos.getZ
 
+  /**
+   * Save the tile and update clients and neighbors. On the server, this happens once at the end of the tick, no matter
+   * how often it is called. Describable tiles tracking their [[Describing]] fields only update clients and neighbors if
+   * one of those fields was assigned, see [[Describable.tracksChanges]].
+   */
   def updateState(): Unit = {
+    if (worldObj.isRemote)
+      applyState(DirtyTiles.DescriptionChanged | DirtyTiles.StateChanged)
+    else
+      DirtyTiles.mark(this, DirtyTiles.StateChanged)
+  }
+
+  private[tileentity] def applyState(flags: Int): Unit = {
     markDirty()
-    world.markBlockForUpdate(pos)
-    world.notifyBlockOfStateChange(pos, blockType)
+    val tracked = this match {
+      case d: Describable => Describable.tracksChanges(d.getClass)
+      case _ => false
+    }
+    val changed = !tracked || (flags & DirtyTiles.DescriptionChanged) != 0
+    if (changed) {
+      this match {
+        case d: Describable if !worldObj.isRemote => d.sendDescription()
+        case _ => world.markBlockForUpdate(pos)
+      }
+      if ((flags & DirtyTiles.StateChanged) != 0)
+        world.notifyBlockOfStateChange(pos, blockType)
+    }
   }
 
   def world = worldObj
@@ -0,0 +1,66 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+/**
+ * ParallelCompute
+ *
+ * Opt-in two-phase server tick for [[MFTile]]s doing heavy, pure computation such as recipe matching or simulation
+ * steps. After all tiles of a world were updated, every such tile takes a snapshot of its state on the main thread,
+ * the snapshots are processed in parallel by [[ParallelTicks]] and the results are applied one after another on the
+ * main thread again, in the order the tiles were updated.
+ *
+ * @tparam S the type of the immutable snapshot the computation works on
+ * @tparam R the type of the computation's result
+ * @author PaleoCrafter
+ */
+trait ParallelCompute[S, R] {
+  this: MFTile =>
+
+  /**
+   * @return true, if [[compute]] should run this tick
+   */
+  def needsCompute: Boolean = true
+
+  /**
+   * Capture everything the computation needs, called on the main thread. The snapshot must not share mutable state
+   * with the tile or the world.
+   */
+  def snapshot(): S
+
+  /**
+   * Do the actual work, called on a worker thread. Must neither access the tile nor the world, only the snapshot.
+   * @param state the snapshot taken this tick
+   * @return the result to apply
+   */
+  def compute(state: S): R
+
+  /**
+   * Write the result back to the tile and the world, called on the main thread later in the same tick.
+   * Not called if the tile was removed in the meantime or the computation failed.
+   * @param result the result of this tick's computation
+   */
+  def applyResult(result: R): Unit
+}
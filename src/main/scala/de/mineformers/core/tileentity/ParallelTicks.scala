@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+import java.util.concurrent.{Callable, CancellationException, ExecutionException, ForkJoinPool, ForkJoinTask}
+
+import de.mineformers.core.util.Log
+import net.minecraft.world.World
+import net.minecraftforge.event.world.WorldEvent
+import net.minecraftforge.fml.common.eventhandler.{EventPriority, SubscribeEvent}
+import net.minecraftforge.fml.common.gameevent.TickEvent
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * ParallelTicks
+ *
+ * Runs the compute phase of [[ParallelCompute]] tiles on a fork-join pool at the end of every world tick.
+ * The main thread waits for all computations of the tick before applying their results, so results are never applied
+ * later than the tick they were computed in. Runs after the [[TileScheduler]], which may queue computations, and before
+ * [[DirtyTiles]] sends the changes. -Dmfcore.tileThreads=<n> sets the number of worker threads, by default
+ * one less than the number of processors.
+ *
+ * @author PaleoCrafter
+ */
+object ParallelTicks {
+  val Threads = System.getProperty("mfcore.tileThreads",
+    String.valueOf(math.max(Runtime.getRuntime.availableProcessors - 1, 1))).toInt
+  private lazy val pool = new ForkJoinPool(Threads)
+  private val pending = mutable.HashMap.empty[World, ArrayBuffer[Job[_, _]]]
+
+  /**
+   * Run a tile's compute phase at the end of the tick
+   * @param tile the tile
+   * @param compute the tile as [[ParallelCompute]]
+   */
+  private[tileentity] def queue[S, R](tile: MFTile, compute: ParallelCompute[S, R]): Unit = {
+    if (compute.needsCompute)
+      pending.getOrElseUpdate(tile.getWorld, ArrayBuffer.empty[Job[_, _]]) += new Job(tile, compute)
+  }
+
+  @SubscribeEvent(priority = EventPriority.LOW)
+  def onWorldTick(event: TickEvent.WorldTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.END) {
+      pending.remove(event.world) foreach {
+        jobs =>
+          val forked = jobs.filter(job => !job.tile.isInvalid && job.fork())
+          forked.foreach(_.finish())
+      }
+    }
+  }
+
+  @SubscribeEvent
+  def onWorldUnload(event: WorldEvent.Unload): Unit = {
+    if (!event.world.isRemote)
+      pending.remove(event.world)
+  }
+
+  private class Job[S, R](val tile: MFTile, compute: ParallelCompute[S, R]) extends Callable[R] {
+    private var state: S = _
+    private var task: ForkJoinTask[R] = null
+
+    /**
+     * Take the snapshot and submit the computation
+     * @return false, if taking the snapshot failed and the job has to be skipped
+     */
+    def fork(): Boolean = {
+      try {
+        state = compute.snapshot()
+      } catch {
+        case e: Exception =>
+          Log.error("Snapshot of " + tile.getClass.getName + " at " + tile.getPos + " failed", e)
+          return false
+      }
+      task = pool.submit(this)
+      true
+    }
+
+    override def call(): R = compute.compute(state)
+
+    def finish(): Unit = {
+      try {
+        val result = task.get()
+        if (!tile.isInvalid)
+          compute.applyResult(result)
+      } catch {
+        case e: ExecutionException =>
+          Log.error("Compute phase of " + tile.getClass.getName + " at " + tile.getPos + " failed", e.getCause)
+        case e: CancellationException =>
+          Log.error("Compute phase of " + tile.getClass.getName + " at " + tile.getPos + " was cancelled", e)
+        case e: InterruptedException =>
+          Log.error("Interrupted while waiting for the compute phase of " + tile.getClass.getName + " at " + tile.getPos, e)
+          Thread.currentThread.interrupt()
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import de.mineformers.core.util.LatencyHistogram
+import net.minecraft.util.BlockPos
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import net.minecraftforge.fml.relauncher.Side
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * TileProfiler
+ *
+ * Times the `init`, `updateServer` and `updateClient` calls of [[MFTile]]s per tile class, dimension and side.
+ * Disabled unless launched with -Dmfcore.tileProfiler=true or started through `/mfcore tiles start`.
+ * To keep the overhead low on production servers, -Dmfcore.tileProfilerSampling=<n> only times every n-th tick.
+ *
+ * @author PaleoCrafter
+ */
+object TileProfiler {
+  private final val RowFormat = "%-50s %5s %10s %10s %10s %15s %10s  %s\n"
+  private final val HotPositions = 3
+  /**
+   * The number of positions tracked per tile class
+   */
+  private final val TrackedPositions = 32
+  @volatile private var enabled = System.getProperty("mfcore.tileProfiler", "false").toBoolean
+  @volatile private var sampling = math.max(System.getProperty("mfcore.tileProfilerSampling", "1").toInt, 1)
+  @volatile private var serverSampled = false
+  @volatile private var clientSampled = false
+  private val ticks = Side.values.map(_ => new AtomicLong)
+  private val sampledTicks = Side.values.map(_ => new AtomicLong)
+  private val stats = Side.values.map(_ => new ConcurrentHashMap[(Class[_], Int), Stats]())
+
+  /**
+   * Statistics of one tile class in one dimension on one side.
+   * Only a fixed number of positions is tracked. Once all slots are taken, a new position replaces the one with the
+   * least time and inherits its time (space-saving), so the slowest positions stay tracked while times of positions
+   * that replaced others are overestimated.
+   */
+  class Stats(val tileClass: Class[_], val dimension: Int) {
+    val init = new LatencyHistogram
+    val update = new LatencyHistogram
+    private val positions = mutable.HashMap.empty[BlockPos, Long]
+
+    def totalNanos: Long = init.totalNanos + update.totalNanos
+
+    private[TileProfiler] def recordPosition(pos: BlockPos, nanos: Long): Unit = synchronized {
+      positions.get(pos) match {
+        case Some(previous) =>
+          positions(pos) = previous + nanos
+        case None if positions.size < TrackedPositions =>
+          positions(pos) = nanos
+        case None =>
+          val (evicted, least) = positions.minBy(_._2)
+          positions -= evicted
+          positions(pos) = least + nanos
+      }
+    }
+
+    /**
+     * @return the positions the most time was spent at, slowest first
+     */
+    def hotPositions(count: Int): Seq[(BlockPos, Long)] = synchronized(positions.toSeq).sortBy(-_._2).take(count)
+  }
+
+  def isEnabled: Boolean = enabled
+
+  /**
+   * Start profiling
+   * @param sampling only time every n-th tick
+   */
+  def start(sampling: Int): Unit = {
+    this.sampling = math.max(sampling, 1)
+    enabled = true
+  }
+
+  def stop(): Unit = {
+    enabled = false
+    serverSampled = false
+    clientSampled = false
+  }
+
+  /**
+   * Forget everything collected so far
+   */
+  def reset(): Unit = {
+    stats.foreach(_.clear())
+    ticks.foreach(_.set(0))
+    sampledTicks.foreach(_.set(0))
+  }
+
+  /**
+   * @param remote true for the client side
+   * @return true, if updates on the given side should be timed during the current tick
+   */
+  def sampled(remote: Boolean): Boolean = if (remote) clientSampled else serverSampled
+
+  def get(clazz: Class[_], dimension: Int, side: Side): Stats = {
+    val map = stats(side.ordinal)
+    val key = (clazz, dimension)
+    val existing = map.get(key)
+    if (existing != null)
+      return existing
+    val created = new Stats(clazz, dimension)
+    val previous = map.putIfAbsent(key, created)
+    if (previous != null) previous else created
+  }
+
+  def recordInit(tile: MFTile, nanos: Long): Unit = {
+    val s = statsOf(tile)
+    s.init.record(nanos)
+    s.recordPosition(tile.getPos, nanos)
+  }
+
+  def recordUpdate(tile: MFTile, nanos: Long): Unit = {
+    val s = statsOf(tile)
+    s.update.record(nanos)
+    s.recordPosition(tile.getPos, nanos)
+  }
+
+  private def statsOf(tile: MFTile): Stats =
+    get(tile.getClass, tile.getWorld.provider.getDimensionId, if (tile.getWorld.isRemote) Side.CLIENT else Side.SERVER)
+
+  @SubscribeEvent
+  def onServerTick(event: TickEvent.ServerTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.START)
+      serverSampled = nextTick(Side.SERVER)
+  }
+
+  @SubscribeEvent
+  def onClientTick(event: TickEvent.ClientTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.START)
+      clientSampled = nextTick(Side.CLIENT)
+  }
+
+  private def nextTick(side: Side): Boolean = {
+    if (!enabled)
+      return false
+    val sampled = ticks(side.ordinal).getAndIncrement() % sampling == 0
+    if (sampled)
+      sampledTicks(side.ordinal).incrementAndGet()
+    sampled
+  }
+
+  /**
+   * @param side the side to report on
+   * @param count the number of rows to include
+   * @return a table of the tile classes taking the most time per tick on the given side
+   */
+  def report(side: Side, count: Int): String = {
+    val sampledCount = math.max(sampledTicks(side.ordinal).get, 1)
+    val b = new StringBuilder
+    b ++= "Tile report for side %s, %d ticks timed (every %d. tick)%s\n".format(side, sampledTicks(side.ordinal).get,
+      sampling, if (enabled) "" else ", not running")
+    b ++= RowFormat.format("Tile", "Dim", "Updates", "Total ms", "ms/tick", "Mean/p99 us", "Max us", "Hot positions")
+    for (s <- stats(side.ordinal).values.asScala.toSeq.sortBy(-_.totalNanos).take(count)) {
+      val hot = s.hotPositions(HotPositions).map {
+        case (pos, nanos) => "%d,%d,%d (%.2f ms)".format(pos.getX, pos.getY, pos.getZ, nanos / 1e6)
+      }
+      b ++= RowFormat.format(s.tileClass.getName, s.dimension, s.update.count, "%.2f".format(s.totalNanos / 1e6),
+        "%.3f".format(s.totalNanos / 1e6 / sampledCount), s.update.summary, "%.1f".format(s.update.maxNanos / 1000.0),
+        hot.mkString(", "))
+    }
+    b.toString()
+  }
+}
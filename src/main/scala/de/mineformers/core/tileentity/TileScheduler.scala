@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.tileentity
+
+import java.util.{Collections, IdentityHashMap}
+
+import net.minecraft.tileentity.TileEntity
+import net.minecraft.world.World
+import net.minecraftforge.event.world.WorldEvent
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * TileScheduler
+ *
+ * Drives the server side updates of [[MFTile]]s that don't update every tick. Tiles that sleep or have a tick interval
+ * above 1 are taken out of the world's list of ticking tiles, so the world doesn't spend any time on them. A hashed
+ * timing wheel per world updates them when they are due and runs the callbacks scheduled through [[MFTile.schedule]].
+ * Changes to a tile's schedule are applied at the end of the world tick, when the world isn't iterating its tiles.
+ *
+ * @author PaleoCrafter
+ */
+object TileScheduler {
+  private val wheels = mutable.HashMap.empty[World, TimingWheel]
+
+  /**
+   * Re-evaluate how a tile is updated at the end of the tick
+   * @param tile the tile whose interval or sleep state changed
+   */
+  private[tileentity] def update(tile: MFTile): Unit = wheel(tile.getWorld).changed += tile
+
+  /**
+   * Stop updating a tile that was invalidated or unloaded
+   * @param tile the tile to remove
+   */
+  private[tileentity] def remove(tile: MFTile): Unit = wheels.get(tile.getWorld) foreach (_.changed += tile)
+
+  /**
+   * Run a callback for a tile after some ticks, unless the tile is invalidated or unloaded before
+   * @param tile the tile the callback belongs to
+   * @param delay the number of ticks to wait
+   * @param callback the callback
+   */
+  private[tileentity] def schedule(tile: MFTile, delay: Int, callback: () => Unit): Unit =
+    wheel(tile.getWorld).add(new Callback(tile, callback), delay)
+
+  private def wheel(world: World) = wheels.getOrElseUpdate(world, new TimingWheel(world))
+
+  @SubscribeEvent
+  def onWorldTick(event: TickEvent.WorldTickEvent): Unit = {
+    if (event.phase == TickEvent.Phase.END)
+      wheels.get(event.world) foreach (_.advance())
+  }
+
+  @SubscribeEvent
+  def onWorldUnload(event: WorldEvent.Unload): Unit = {
+    if (!event.world.isRemote)
+      wheels.remove(event.world)
+  }
+
+  private[tileentity] abstract class Task {
+    var deadline = 0L
+    var cancelled = false
+
+    def run(wheel: TimingWheel): Unit
+  }
+
+  private class Tick(tile: MFTile) extends Task {
+    override def run(wheel: TimingWheel): Unit = {
+      if (!tile.isInvalid && !tile.unloaded) {
+        if (wheel.world.isBlockLoaded(tile.getPos))
+          tile.update()
+        if (!cancelled)
+          wheel.add(this, tile.tickInterval)
+      }
+    }
+  }
+
+  private class Callback(tile: MFTile, callback: () => Unit) extends Task {
+    override def run(wheel: TimingWheel): Unit = {
+      if (!tile.isInvalid && !tile.unloaded)
+        callback()
+    }
+  }
+
+  /**
+   * A ring of slots, one per tick. Tasks due further ahead than the ring is long stay in their slot until their
+   * deadline comes around, so adding and running tasks is constant time regardless of the delay.
+   */
+  private[tileentity] class TimingWheel(val world: World) {
+    private final val Slots = 256
+    private val slots = Array.fill(Slots)(ArrayBuffer.empty[Task])
+    private var now = 0L
+    val changed = mutable.LinkedHashSet.empty[MFTile]
+
+    def add(task: Task, delay: Int): Unit = {
+      task.deadline = now + math.max(delay, 1)
+      slots((task.deadline & (Slots - 1)).toInt) += task
+    }
+
+    def advance(): Unit = {
+      if (changed.nonEmpty) {
+        // removing tiles one by one from the world's list is linear each, so they are removed in a single pass
+        val detached = Collections.newSetFromMap(new IdentityHashMap[TileEntity, java.lang.Boolean])
+        for (tile <- changed)
+          apply(tile, detached)
+        changed.clear()
+        if (!detached.isEmpty)
+          world.tickableTileEntities.asInstanceOf[java.util.List[TileEntity]].removeAll(detached)
+      }
+      now += 1
+      val index = (now & (Slots - 1)).toInt
+      val due = slots(index)
+      if (due.nonEmpty) {
+        slots(index) = ArrayBuffer.empty[Task]
+        for (task <- due if !task.cancelled) {
+          if (task.deadline > now)
+            slots(index) += task
+          else
+            task.run(this)
+        }
+      }
+    }
+
+    /**
+     * @param detached collects the tiles to remove from the world's list of ticking tiles
+     */
+    private def apply(tile: MFTile, detached: java.util.Set[TileEntity]): Unit = {
+      val valid = !tile.isInvalid && !tile.unloaded
+      val detach = valid && (tile.isSleeping || tile.tickInterval > 1)
+      if (valid && detach != tile.detached) {
+        if (detach)
+          detached.add(tile)
+        else
+          world.tickableTileEntities.asInstanceOf[java.util.List[TileEntity]].add(tile)
+        tile.detached = detach
+      }
+      val ticking = detach && !tile.isSleeping
+      if (!ticking && tile.tickTask != null) {
+        tile.tickTask.cancelled = true
+        tile.tickTask = null
+      } else if (ticking && tile.tickTask == null) {
+        tile.tickTask = new Tick(tile)
+        add(tile.tickTask, tile.tickInterval)
+      }
+    }
+  }
+}
@@ -24,12 +24,14 @@
 package de.mineformers.core.tileentity
 
 import java.lang.reflect.Field
+import java.lang.{Boolean => JBoolean, Byte => JByte, Character => JCharacter, Double => JDouble, Float => JFloat, Integer => JInteger, Long => JLong, Short => JShort}
+import java.util.Arrays
 
 import de.mineformers.core.MFCore
 import de.mineformers.core.network.Message.Serializer
-import de.mineformers.core.network.{Message, TileDescriptionMessage}
+import de.mineformers.core.network.{Message, TileDescriptionMessage, WireFormat}
 import de.mineformers.core.util.world.BlockPos
-import io.netty.buffer.ByteBuf
+import io.netty.buffer.{ByteBuf, Unpooled}
 import net.minecraft.network.Packet
 import net.minecraftforge.fml.relauncher.SideOnly
 
@@ -38,31 +40,74 @@ import scala.collection.mutable
 /**
  * TileDescription
  *
+ * Either contains all fields of the parent, or only those that changed since the version given by [[base]].
+ *
  * @author PaleoCrafter
  */
-final class TileDescription(val parentClass: Class[Describable]) {
-  val fields = Describable.collectFields(parentClass)
+final class TileDescription(val parentClass: Class[Describable], val fields: Seq[Field]) {
   val values = mutable.Map.empty[Field, Any]
+  /**
+   * The version of the parent's state this description describes
+   */
+  var version = 0
+  /**
+   * The version this description is a delta to, -1 if it contains all fields
+   */
+  var base = -1
+  /**
+   * The indices of the fields contained in a delta
+   */
+  var changed: mutable.BitSet = null
+  private[tileentity] var encoded: Array[Array[Byte]] = null
+
+  def this(parentClass: Class[Describable]) = this(parentClass, Describable.collectFields(parentClass))
 
-  def this() = this(null)
+  def this() = this(null, Seq.empty)
+
+  def isDelta = base >= 0
+
+  /**
+   * @return the serialized form of every field, in the order of [[fields]]
+   */
+  def encode(): Array[Array[Byte]] = {
+    if (encoded == null) {
+      encoded = fields.map {
+        f =>
+          val buf = Unpooled.buffer()
+          Describable.getSerializer(f).get.serialize(values(f), buf)
+          val bytes = new Array[Byte](buf.readableBytes)
+          buf.readBytes(bytes)
+          bytes
+      }.toArray
+    }
+    encoded
+  }
 
   def write(buf: ByteBuf): Unit = {
-    for (f <- fields) {
-      Describable.getSerializer(f) match {
-        case Some(s) =>
-          s.serialize(values(f), buf)
-        case _ =>
-      }
+    val data = encode()
+    WireFormat.writeVarInt(buf, version)
+    WireFormat.writeVarInt(buf, base)
+    if (isDelta) {
+      val mask = new Array[Byte]((fields.length + 7) / 8)
+      for (i <- changed)
+        mask(i >> 3) = (mask(i >> 3) | (1 << (i & 7))).toByte
+      buf.writeBytes(mask)
     }
+    for (i <- fields.indices if !isDelta || changed(i))
+      buf.writeBytes(data(i))
   }
 
   def read(buf: ByteBuf): Unit = {
-    for (f <- fields) {
-      Describable.getSerializer(f) match {
-        case Some(s) =>
-          values += f -> s.deserialize(buf)
-        case _ =>
-      }
+    version = WireFormat.readVarInt(buf)
+    base = WireFormat.readVarInt(buf)
+    if (isDelta) {
+      val mask = new Array[Byte]((fields.length + 7) / 8)
+      buf.readBytes(mask)
+      changed = mutable.BitSet(fields.indices.filter(i => (mask(i >> 3) & (1 << (i & 7))) != 0): _*)
+    }
+    for (i <- fields.indices if !isDelta || changed(i)) {
+      val f = fields(i)
+      values += f -> Describable.getSerializer(f).get.deserialize(buf)
     }
   }
 
@@ -72,8 +117,11 @@ final class TileDescription(val parentClass: Class[Describable]) {
     }
   }
 
+  /**
+   * Apply the contained values to the parent, fields missing from a delta are left untouched
+   */
   def writeParent(parent: Describable): Unit = {
-    for (f <- fields) {
+    for (f <- fields if values.contains(f)) {
       f.set(parent, values(f))
     }
   }
@@ -86,11 +134,100 @@ final class TileDescription(val parentClass: Class[Describable]) {
  */
 trait Describable {
   this: MFTile =>
+  /**
+   * On the server, the version of the last description sent; on the client, the version last applied
+   */
+  private[core] var descriptionVersion = -1
+  private var descriptionSnapshot: Array[Array[Byte]] = null
+  private var descriptionRequested = false
+
+  /**
+   * Used by vanilla whenever the tile is sent to a player that doesn't necessarily know it yet, e.g. with the chunk,
+   * so it always carries the full description. Changes are sent to watching players by [[sendDescription]].
+   */
   final override def getDescriptionPacket: Packet = {
-    if (description == null)
+    val desc = fullDescription()
+    if (desc == null)
+      return null
+
+    MFCore.net.getPacketFrom(new TileDescriptionMessage(BlockPos.vanilla2custom(pos), desc))
+  }
+
+  /**
+   * Send the fields that changed since the last call to the players watching the tile
+   */
+  private[core] def sendDescription(): Unit = {
+    val desc = syncDescription()
+    if (desc != null)
+      MFCore.net.sendToAllWatching(new TileDescriptionMessage(BlockPos.vanilla2custom(pos), desc),
+        world.provider.getDimensionId, pos)
+  }
+
+  /**
+   * Create the description to send to watching clients. Only the fields that changed since the last call are
+   * included, the first call creates the full description.
+   *
+   * @return the description to send, or null if there is none or nothing changed
+   */
+  private[core] def syncDescription(): TileDescription = {
+    val desc = description
+    if (desc == null)
       return null
+    DescriptionRegistry.announce(desc.parentClass)
+    val current = desc.encode()
+    if (descriptionSnapshot != null) {
+      val changed = mutable.BitSet.empty
+      for (i <- current.indices if !Arrays.equals(current(i), descriptionSnapshot(i)))
+        changed += i
+      if (changed.isEmpty)
+        return null
+      desc.base = descriptionVersion
+      desc.changed = changed
+    }
+    descriptionVersion += 1
+    descriptionSnapshot = current
+    desc.version = descriptionVersion
+    desc
+  }
+
+  /**
+   * @return all fields as they were last sent, for clients which don't know the tile yet or missed a delta
+   */
+  private[core] def fullDescription(): TileDescription = {
+    if (descriptionSnapshot == null)
+      return syncDescription()
+    DescriptionRegistry.announce(getClass)
+    val desc = new TileDescription(this.getClass.asInstanceOf[Class[Describable]])
+    desc.encoded = descriptionSnapshot
+    desc.version = descriptionVersion
+    desc
+  }
 
-    MFCore.net.getPacketFrom(new TileDescriptionMessage(BlockPos.vanilla2custom(pos), description))
+  /**
+   * Apply a description received from the server
+   *
+   * @return true, if the description is a delta to a version this tile doesn't have and a full one has to be requested
+   */
+  private[core] def receiveDescription(desc: TileDescription): Boolean = {
+    if (desc.isDelta && desc.base != descriptionVersion) {
+      val request = !descriptionRequested
+      descriptionRequested = true
+      return request
+    }
+    descriptionRequested = false
+    desc.writeParent(this)
+    descriptionVersion = desc.version
+    onDescription()
+    false
+  }
+
+  /**
+   * Send a new description at the end of the tick. Called automatically when a [[Describing]] field is assigned, call
+   * it manually after changing the contents of a described object, e.g. a collection.
+   */
+  def markDescriptionDirty(): Unit = {
+    if (world != null && !world.isRemote)
+      DirtyTiles.mark(this, DirtyTiles.DescriptionChanged)
   }
 
   def description: TileDescription = {
@@ -103,15 +240,18 @@ trait Describable {
 }
 
 object Describable {
+  private final val ImmutableTypes = Set[Class[_]](classOf[String], classOf[JBoolean], classOf[JByte], classOf[JShort],
+    classOf[JCharacter], classOf[JInteger], classOf[JLong], classOf[JFloat], classOf[JDouble])
   private val classFieldMappings = mutable.Map.empty[Class[_ <: Describable], Seq[Field]]
   private val fieldSerializerMappings = mutable.Map.empty[Field, Serializer[Any]]
+  private val trackingMappings = mutable.Map.empty[Class[_ <: Describable], Boolean]
 
   def collectFields[T <: Describable](clazz: Class[T]): Seq[Field] = classFieldMappings.getOrElseUpdate(clazz, {
     clazz.getDeclaredFields.sortBy(_.getName).foldLeft(Seq.empty[Field]) {
       (acc: Seq[Field], f: Field) =>
         if (f.getAnnotation(classOf[Describing]) != null && f.getAnnotation(classOf[SideOnly]) == null) {
           f.setAccessible(true)
-          Message.getSerializer(f.getType) match {
+          Message.getSerializer(f.getGenericType) match {
             case Some(s) =>
               fieldSerializerMappings += f -> s.asInstanceOf[Serializer[Any]]
               acc ++ Seq(f)
@@ -123,4 +263,18 @@ object Describable {
   })
 
   def getSerializer(f: Field) = fieldSerializerMappings.get(f)
+
+  /**
+   * Whether assignments are the only way the described fields of a class can change. That is the case if the class
+   * is [[DescriptionTracking]] and all of its described fields have immutable types. Otherwise, e.g. for collections,
+   * arrays or item stacks which can be changed in place, the fields are compared to the last description on every
+   * state update.
+   *
+   * @param clazz the describable class
+   * @return true, if the class only needs to send descriptions after one of its described fields was assigned
+   */
+  def tracksChanges(clazz: Class[_ <: Describable]): Boolean = trackingMappings.getOrElseUpdate(clazz,
+    classOf[DescriptionTracking].isAssignableFrom(clazz) && collectFields(clazz).forall {
+      f => f.getType.isPrimitive || f.getType.isEnum || ImmutableTypes(f.getType)
+    })
 }
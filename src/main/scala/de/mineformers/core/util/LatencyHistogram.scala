@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.mineformers.core.util
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+/**
+ * LatencyHistogram
+ *
+ * Lock-free histogram of durations in power-of-two nanosecond buckets.
+ *
+ * @author PaleoCrafter
+ */
+class LatencyHistogram {
+  private val buckets = new AtomicLongArray(64)
+  private val total = new AtomicLong
+  private val maximum = new AtomicLong
+
+  def record(nanos: Long): Unit = {
+    buckets.incrementAndGet(63 - java.lang.Long.numberOfLeadingZeros(math.max(nanos, 1)))
+    total.addAndGet(nanos)
+    var current = maximum.get
+    while (nanos > current && !maximum.compareAndSet(current, nanos))
+      current = maximum.get
+  }
+
+  def count: Long = {
+    var result = 0L
+    var i = 0
+    while (i < buckets.length) {
+      result += buckets.get(i)
+      i += 1
+    }
+    result
+  }
+
+  def totalNanos: Long = total.get
+
+  def maxNanos: Long = maximum.get
+
+  def meanNanos: Double = {
+    val n = count
+    if (n == 0) 0 else totalNanos.toDouble / n
+  }
+
+  /**
+   * @param p the percentile, between 0 and 1
+   * @return the upper bound of the bucket containing the given percentile, in nanoseconds
+   */
+  def percentile(p: Double): Long = {
+    val target = math.ceil(count * p).toLong
+    var seen = 0L
+    var i = 0
+    while (i < buckets.length) {
+      seen += buckets.get(i)
+      if (seen >= target && seen > 0)
+        return (1L << (i + 1)) - 1
+      i += 1
+    }
+    0
+  }
+
+  /**
+   * @return mean and 99th percentile in microseconds
+   */
+  def summary: String = "%.1f/%.1f".format(meanNanos / 1000, percentile(0.99) / 1000.0)
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.asm.transformer
+
+import java.io.File
+import java.nio.file.Files
+
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+/**
+ * ClassCacheTest
+ *
+ * @author PaleoCrafter
+ */
+class ClassCacheTest {
+  private var dir: File = _
+  private val input = Array[Byte](1, 2, 3, 4)
+  private val output = Array[Byte](5, 6, 7)
+
+  @Before
+  def setUp(): Unit = dir = Files.createTempDirectory("classcache").toFile
+
+  @After
+  def tearDown(): Unit = {
+    for (file <- Option(dir.listFiles()).getOrElse(Array.empty))
+      file.delete()
+    dir.delete()
+  }
+
+  private def open(fingerprint: String = "transformers") = new ClassCache(new File(dir, "test.bin"), fingerprint)
+
+  @Test
+  def persistsEntries(): Unit = {
+    val cache = open()
+    val hash = cache.hash(input)
+    cache.put("a.Changed", hash, null, input, output)
+    cache.put("a.Untouched", hash, null, input, input)
+    cache.save()
+
+    val reopened = open()
+    assertArrayEquals(output, reopened.get("a.Changed", hash, input))
+    assertSame(input, reopened.get("a.Untouched", hash, input))
+  }
+
+  @Test
+  def rejectsChangedInput(): Unit = {
+    val cache = open()
+    cache.put("a.Changed", cache.hash(input), null, input, output)
+    cache.save()
+
+    val changed = Array[Byte](1, 2, 3, 5)
+    val reopened = open()
+    assertNull(reopened.get("a.Changed", reopened.hash(changed), changed))
+  }
+
+  @Test
+  def discardsCacheOfOtherTransformers(): Unit = {
+    val cache = open()
+    val hash = cache.hash(input)
+    cache.put("a.Changed", hash, null, input, output)
+    cache.save()
+
+    assertNull(open("other transformers").get("a.Changed", hash, input))
+  }
+
+  @Test
+  def dropsUnusedEntries(): Unit = {
+    val cache = open()
+    val hash = cache.hash(input)
+    cache.put("a.Used", hash, null, input, output)
+    cache.put("a.Unused", hash, null, input, output)
+    cache.save()
+
+    val second = open()
+    assertNotNull(second.get("a.Used", hash, input))
+    second.save()
+
+    val third = open()
+    assertNotNull(third.get("a.Used", hash, input))
+    assertNull(third.get("a.Unused", hash, input))
+  }
+}
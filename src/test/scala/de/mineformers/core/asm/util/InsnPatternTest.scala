@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.asm.util
+
+import de.mineformers.core.asm.util.InsnPattern._
+import org.junit.Assert._
+import org.junit.Test
+import org.objectweb.asm.Opcodes._
+import org.objectweb.asm.tree._
+
+import scala.util.Random
+
+/**
+ * InsnPatternTest
+ *
+ * @author PaleoCrafter
+ */
+class InsnPatternTest {
+  /**
+   * ALOAD 0, ICONST_1, POP, ALOAD 0, markDirty(), ALOAD 0, markDirty(), RETURN with a label in between, which is not
+   * part of the index
+   */
+  private def sample: OpcodeIndex = {
+    val method = new MethodNode(ACC_PUBLIC, "update", "()V", null, null)
+    val insns = method.instructions
+    insns.add(new VarInsnNode(ALOAD, 0))
+    insns.add(new InsnNode(ICONST_1))
+    insns.add(new LabelNode())
+    insns.add(new InsnNode(POP))
+    insns.add(new VarInsnNode(ALOAD, 0))
+    insns.add(new MethodInsnNode(INVOKEVIRTUAL, "Tile", "markDirty", "()V", false))
+    insns.add(new VarInsnNode(ALOAD, 0))
+    insns.add(new MethodInsnNode(INVOKEVIRTUAL, "Tile", "markDirty", "()V", false))
+    insns.add(new InsnNode(RETURN))
+    OpcodeIndex(method)
+  }
+
+  @Test
+  def findsLeftmostMatchWithShortestGap(): Unit = {
+    val index = sample
+    val result = InsnPattern(variable(ALOAD, 0), gap(10), method(INVOKEVIRTUAL, name = "markDirty").as("call")).findFirst(index)
+    assertNotNull(result)
+    assertEquals(0, result.start)
+    assertEquals(5, result.end)
+    assertSame(index.instructions(4), result("call"))
+  }
+
+  @Test
+  def respectsGapBounds(): Unit = {
+    val index = sample
+    val short = InsnPattern(variable(ALOAD, 0), gap(2), opcode(INVOKEVIRTUAL)).findFirst(index)
+    assertEquals(3, short.start)
+    assertEquals(5, short.end)
+    val long = InsnPattern(opcode(ICONST_1), gap(3, 5), opcode(INVOKEVIRTUAL)).findFirst(index)
+    assertEquals(1, long.start)
+    assertEquals(7, long.end)
+  }
+
+  @Test
+  def findsAllMatchesWithoutOverlap(): Unit = {
+    val matches = InsnPattern(variable(ALOAD, 0), opcode(INVOKEVIRTUAL)).findAll(sample)
+    assertEquals(Seq(3 -> 5, 5 -> 7), matches.map(m => m.start -> m.end))
+  }
+
+  @Test
+  def reportsMissingPatterns(): Unit = {
+    val pattern = InsnPattern(opcode(IRETURN))
+    assertNull(pattern.findFirst(sample))
+    assertFalse(pattern.occursIn(sample))
+  }
+
+  @Test
+  def agreesWithBacktracking(): Unit = {
+    val random = new Random(42)
+    val opcodes = Array(NOP, POP, ICONST_0, ICONST_1)
+    for (_ <- 0 until 2000) {
+      val method = new MethodNode(ACC_PUBLIC, "test", "()V", null, null)
+      for (_ <- 0 until random.nextInt(16))
+        method.instructions.add(new InsnNode(opcodes(random.nextInt(opcodes.length))))
+      val index = OpcodeIndex(method)
+      val elements = Seq.fill(1 + random.nextInt(4)) {
+        random.nextInt(4) match {
+          case 0 => any
+          case 1 =>
+            val min = random.nextInt(3)
+            gap(min, min + random.nextInt(4))
+          case _ => opcode(opcodes(random.nextInt(opcodes.length)))
+        }
+      }
+      val expected = backtrack(elements.toList, index)
+      val actual = Option(InsnPattern(elements: _*).findFirst(index)).map(m => m.start -> m.end)
+      assertEquals(elements.toString, expected, actual)
+    }
+  }
+
+  /**
+   * The reference the automaton has to agree with: try every start from the left, gaps as short as possible
+   */
+  private def backtrack(elements: List[Element], index: OpcodeIndex): Option[(Int, Int)] = {
+    val insns = index.instructions
+    def matchAt(rest: List[Element], pos: Int): Option[Int] = rest match {
+      case Nil => Some(pos)
+      case (s: Single) :: tail =>
+        if (pos < insns.length && s.matches(insns(pos))) matchAt(tail, pos + 1) else None
+      case Gap(min, max) :: tail =>
+        (min to max).iterator.filter(pos + _ <= insns.length).map(n => matchAt(tail, pos + n)).collectFirst {
+          case Some(end) => end
+        }
+    }
+    (0 to insns.length).iterator.map(start => matchAt(elements, start).map(start -> _)).collectFirst {
+      case Some(m) => m
+    }
+  }
+}
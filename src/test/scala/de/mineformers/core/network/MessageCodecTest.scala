@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.network
+
+import io.netty.buffer.Unpooled
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * MessageCodecTest
+ *
+ * @author PaleoCrafter
+ */
+class MessageCodecTest {
+  private def sample: CodecTestMessage = {
+    val message = new CodecTestMessage
+    message.count = -42
+    message.id = 1L << 40
+    message.flag = true
+    message.name = "codec"
+    message.values = Array(1, -1, Int.MaxValue)
+    message.names = List("a", "b")
+    message.label = Some("label")
+    message
+  }
+
+  private def roundTrip[M <: Message](message: M, compact: Boolean): M = {
+    val buf = Unpooled.buffer()
+    MessageCodec.of(message.getClass, compact).write(message, buf)
+    val result = message.getClass.newInstance().asInstanceOf[M]
+    MessageCodec.of(message.getClass, compact).read(result, buf)
+    assertEquals(0, buf.readableBytes)
+    buf.release()
+    result
+  }
+
+  private def assertFieldsEqual(expected: CodecTestMessage, actual: CodecTestMessage): Unit = {
+    assertEquals(expected.count, actual.count)
+    assertEquals(expected.id, actual.id)
+    assertEquals(expected.flag, actual.flag)
+    assertEquals(expected.name, actual.name)
+    assertArrayEquals(expected.values, actual.values)
+    assertEquals(expected.names, actual.names)
+    assertEquals(expected.label, actual.label)
+  }
+
+  @Test
+  def generatesCodecForScalaVars(): Unit = {
+    assertFalse(MessageCodec.of(classOf[CodecTestMessage], false).isInstanceOf[ReflectiveCodec])
+    assertFalse(MessageCodec.of(classOf[CodecTestMessage], true).isInstanceOf[ReflectiveCodec])
+  }
+
+  @Test
+  def roundTripsAllFields(): Unit = {
+    assertFieldsEqual(sample, roundTrip(sample, compact = false))
+  }
+
+  @Test
+  def roundTripsCompactFormat(): Unit = {
+    assertFieldsEqual(sample, roundTrip(sample, compact = true))
+  }
+
+  @Test
+  def roundTripsNullFields(): Unit = {
+    val message = sample
+    message.name = null
+    message.values = null
+    for (compact <- Seq(false, true))
+      assertFieldsEqual(message, roundTrip(message, compact))
+  }
+
+  @Test
+  def fallsBackToReflectionForFinalFields(): Unit = {
+    assertTrue(MessageCodec.of(classOf[FinalFieldMessage], false).isInstanceOf[ReflectiveCodec])
+    for (compact <- Seq(false, true)) {
+      val result = roundTrip(new FinalFieldMessage(7, "final"), compact)
+      assertEquals(7, result.value)
+      assertEquals("final", result.text)
+    }
+  }
+
+  @Test(expected = classOf[IllegalArgumentException])
+  def rejectsErasedElementTypes(): Unit = {
+    MessageCodec.of(classOf[ErasedMessage], false)
+  }
+}
+
+class CodecTestMessage extends Message {
+  var count: Int = 0
+  var id: Long = 0
+  var flag: Boolean = false
+  var name: String = null
+  var values: Array[Int] = null
+  var names: List[String] = Nil
+  var label: Option[String] = None
+}
+
+class FinalFieldMessage(val value: Int, val text: String) extends Message {
+  def this() = this(0, null)
+}
+
+class ErasedMessage extends Message {
+  var values: List[Int] = Nil
+}
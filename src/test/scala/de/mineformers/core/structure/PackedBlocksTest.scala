@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 MineFormers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mineformers.core.structure
+
+import net.minecraft.block.Block
+import net.minecraft.init.{Blocks, Bootstrap}
+import net.minecraft.nbt.NBTTagCompound
+import org.junit.Assert._
+import org.junit.{BeforeClass, Test}
+
+/**
+ * PackedBlocksTest
+ *
+ * @author PaleoCrafter
+ */
+class PackedBlocksTest {
+  private val blocks = Seq[Block](Blocks.stone, Blocks.wool, Blocks.planks)
+
+  @Test
+  def readsWhatWasWritten(): Unit = {
+    val storage = new PackedBlocks(64)
+    assertTrue(storage.isEmpty(0))
+    storage.set(0, Blocks.stone, 0, null)
+    storage.set(63, Blocks.wool, 14, null)
+    assertEquals(Blocks.stone, storage.block(0))
+    assertEquals(Blocks.wool, storage.block(63))
+    assertEquals(14, storage.metadata(63))
+    assertEquals(Blocks.air, storage.block(1))
+    storage.remove(63)
+    assertTrue(storage.isEmpty(63))
+  }
+
+  @Test
+  def growsWhenThePaletteIsFull(): Unit = {
+    val storage = new PackedBlocks(100)
+    fill(storage)
+    assertEquals(6, storage.bitsPerCell)
+    for (cell <- 0 until 48) {
+      assertEquals(blocks(cell / 16), storage.block(cell))
+      assertEquals(cell % 16, storage.metadata(cell))
+    }
+    assertTrue(storage.isEmpty(48))
+  }
+
+  @Test
+  def compactsCopies(): Unit = {
+    val storage = new PackedBlocks(100)
+    fill(storage)
+    for (cell <- 1 until 48)
+      storage.set(cell, Blocks.stone, 0, null)
+    val copy = new PackedBlocks(100)
+    storage.copyTo(copy)
+    assertEquals(2, copy.paletteSize)
+    assertEquals(4, copy.bitsPerCell)
+    for (cell <- 0 until 48)
+      assertEquals(Blocks.stone, copy.block(cell))
+    assertTrue(copy.isEmpty(48))
+    storage.set(48, Blocks.wool, 3, null)
+    assertTrue(copy.isEmpty(48))
+  }
+
+  @Test
+  def copiesTileTags(): Unit = {
+    val storage = new PackedBlocks(16)
+    val tag = new NBTTagCompound
+    tag.setInteger("power", 1)
+    storage.set(5, Blocks.chest, 0, tag)
+    val copy = new PackedBlocks(16)
+    storage.copyTo(copy)
+    tag.setInteger("power", 2)
+    assertEquals(1, copy.tile(5).getInteger("power"))
+    assertNotSame(storage.tile(5), copy.tile(5))
+  }
+
+  /**
+   * Set cells 0 to 47 to every metadata of three blocks, 49 palette entries including air
+   */
+  private def fill(storage: PackedBlocks): Unit = {
+    for (cell <- 0 until 48)
+      storage.set(cell, blocks(cell / 16), (cell % 16).toByte, null)
+  }
+}
+
+object PackedBlocksTest {
+  @BeforeClass
+  def bootstrap(): Unit = Bootstrap.register()
+}